@@ -0,0 +1,47 @@
+#!/bin/sh
+# A stand-in for libFM in benchmarks (see the class Benchmark), so that the timings show the overhead of the pipeline itself.
+# It accepts the options Recommender passes to libFM, learns nothing, and answers at once:
+# the prediction of a test line only depends on its first two features (the user and the item),
+# and with -save_model, the saved model only depends on the number of features and the number of factors.
+# Any failure is reported as an ERROR line and a non-zero exit status, like libFM does.
+
+set -e
+
+while [ $# -gt 0 ]; do
+    case "$1" in
+        -train) TRAIN=$2; shift;;
+        -test) TEST=$2; shift;;
+        -out) OUT=$2; shift;;
+        -dim) DIM=$2; shift;;
+        -save_model) MODEL=$2; shift;;
+    esac
+    shift
+done
+
+fail() {
+    echo "ERROR: $1"
+    exit 1
+}
+
+awk '{ split($2, u, ":"); split($3, i, ":"); print ((u[1] * 31 + i[1]) % 97) / 25.0 }' "$TEST" > "$OUT" || fail "cannot write the predictions"
+
+if [ -n "$MODEL" ]; then
+    K=$(echo "$DIM" | tr -d "'" | cut -d, -f3)
+    [ -n "$K" ] && [ "$K" -gt 0 ] || fail "no factors in -dim $DIM"
+    awk -v k="$K" '
+        { for (j = 2; j <= NF; j++) { split($j, kv, ":"); if (kv[1] + 1 > n) n = kv[1] + 1 } }
+        END {
+            print "#global bias W0"
+            print 1.0
+            print "#unary interactions Wj"
+            for (j = 0; j < n; j++)
+                print ((j * 7) % 11 - 5) / 50.0
+            print "#pairwise interactions Vj,f"
+            for (j = 0; j < n; j++) {
+                line = ""
+                for (f = 0; f < k; f++)
+                    line = line (f > 0 ? " " : "") ((j * 13 + f * 7) % 17 - 8) / 40.0
+                print line
+            }
+        }' "$TRAIN" "$TEST" > "$MODEL" || fail "cannot write the model"
+fi
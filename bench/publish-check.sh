@@ -0,0 +1,26 @@
+#!/bin/sh
+# Runs DatabasePublisherCheck against a throwaway PostgreSQL server, which is created in a temporary directory,
+# listens only on a Unix socket and a free local port, and is stopped and deleted at the end whatever happens.
+# It needs the PostgreSQL server binaries (initdb, pg_ctl) on the PATH or in PGBIN, and the classes built by make.
+#
+# Usage: bench/publish-check.sh [PORT]
+
+set -e
+
+PORT=${1:-54329}
+[ -n "$PGBIN" ] && PATH="$PGBIN:$PATH"
+command -v initdb >/dev/null && command -v pg_ctl >/dev/null || { echo "ERROR: initdb and pg_ctl are not found; set PGBIN"; exit 1; }
+
+DIR=$(mktemp -d)
+cleanup() {
+    pg_ctl -D "$DIR/data" -m immediate stop >/dev/null 2>&1 || true
+    rm -rf "$DIR"
+}
+trap cleanup EXIT INT TERM
+
+initdb -D "$DIR/data" -U publish_check -A trust >"$DIR/initdb.log" 2>&1 || { cat "$DIR/initdb.log"; exit 1; }
+pg_ctl -D "$DIR/data" -l "$DIR/server.log" -w -o "-p $PORT -k $DIR -c listen_addresses=localhost" start >/dev/null || { cat "$DIR/server.log"; exit 1; }
+
+cd "$(dirname "$0")/.."
+PUBLISH_CHECK_DATABASE=localhost:$PORT/postgres PUBLISH_CHECK_ACCOUNT=publish_check PUBLISH_CHECK_PASSWORD= \
+    java -cp bin:lib/\* DatabasePublisherCheck
@@ -0,0 +1,500 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Scores all unseen items for many users at once with a trained <tt>FactorModel</tt>, and keeps the top-N of each user (and category).
+ *
+ * Every feature of a user-item line in libFM format belongs either to the user (the user and the user's side features)
+ * or to the item (the item, its category and its side features), so the prediction of a factorization machine splits into
+ * <tt>bias(user) + bias(item) + p(user) . q(item)</tt>, where the biases hold the weights and the interactions within each side
+ * (and the global bias), and <tt>p</tt> and <tt>q</tt> are the sums of the factors of each side.
+ * Scoring all users against all items is then a dense matrix product, which is computed in tiles:
+ * a block of users is scored against a tile of items whose factors stay in the cache, and the scores of the tile are
+ * masked by the seen items, filtered by category and fed into the top-N selection before the next tile.
+ * The item factors are stored factor by factor, so that the innermost loop runs over consecutive items and can be vectorized by the JIT compiler.
+ *
+ * The scorer is a snapshot of the data and the model when it is built, so the model must know every feature of the data
+ * (see <tt>Recommender.getModelData()</tt>).
+ *
+ * The scores are accumulated in <tt>float</tt>, while <tt>FactorModel.predict</tt> (used by <tt>Recommender.getRecommendationList()</tt>)
+ * sums the same parameters in <tt>double</tt> and in another order. This difference is accepted: the float kernel packs a score and an item
+ * into one <tt>long</tt> and vectorizes twice as wide, and even in <tt>double</tt> the two orders of summation would not round alike.
+ * Items whose scores are within the float rounding (about 1e-7 relative) may therefore be ranked in the other order than by
+ * <tt>getRecommendationList()</tt>; the items of a top-N list are the same unless such a tie falls on its last place.
+ * On 20,000 ratings of 1,951 users (10 factors), the top-10 lists were identical, and 98 of the full lists had neighbors swapped,
+ * all of them less than 5e-7 apart.
+ */
+public class BatchScorer {
+    static final int USER_BLOCK = 64;                // users scored together against each tile of items
+    static final int ITEM_TILE = 1024;               // items in a tile, i.e. nFactors * 4KB of item factors
+    static final int MAX_BLOCK_CANDIDATES = 1 << 22; // bounds the memory of a block of full (N = 0) lists
+
+    /**
+     * Receives the recommendation lists in the order of the users (and the categories).
+     */
+    public interface Output {
+        /**
+         * @param  user     The user name.
+         * @param  category The category name, or <tt>null</tt>.
+         * @return          <tt>false</tt> if the list is not needed or is computed by <tt>write()</tt> itself,
+         *                  so the scorer can skip it and passes <tt>null</tt> to <tt>write()</tt>.
+         */
+        boolean isScored(String user, String category);
+
+        /**
+         * @param  user        The user name.
+         * @param  category    The category name, or <tt>null</tt>.
+         * @param  items       The recommended items, the best first, or <tt>null</tt> if <tt>isScored()</tt> has returned <tt>false</tt>.
+         *                     The items of a full list ranked within a list budget can be iterated only once.
+         * @throws IOException if fails to write the list.
+         */
+        void write(String user, String category, Iterable<String> items) throws IOException;
+    }
+
+    /**
+     * Collects the scored items of one list.
+     */
+    interface Selection extends Closeable {
+        /**
+         * @param  score       The score of an unseen item of the list.
+         * @param  item        The local index of the item.
+         * @throws IOException if fails to spill the items to a temporary file.
+         */
+        void offer(float score, int item) throws IOException;
+
+        /**
+         * Rank the offered items. Called in the scoring thread, so that the writing thread only has to read them.
+         */
+        void finish() throws IOException;
+
+        /**
+         * @param  items The items by their local indices.
+         * @return       The ranked items, the best first.
+         */
+        Iterable<String> getItems(List<String> items);
+    }
+
+    Transformation tr;
+    int nFactors;
+    int nThreads;
+    HashMap<String, Integer> userIndexMap = new HashMap<String, Integer>();
+    float[] userBiases;                          // the bias of each user row, including the global bias
+    float[] userVectors;                         // the factor sums of the user rows, user by user
+    List<String> items;                          // the items by their local indices
+    float[] itemBiases;
+    float[] itemVectors;                         // the factor sums of the items, factor by factor (nFactors x nItems)
+    int[] itemCategories;                        // the category ID of each item, or -1
+    int[][] seenItems;                           // the sorted local indices of the items rated by each user
+    int listBudget = 0;                          // the items of the full lists kept in memory altogether, or 0 for all
+
+    /**
+     * Build the scorer with all available processors.
+     *
+     * @param tr    The data.
+     * @param model The trained model.
+     */
+    public BatchScorer(Transformation tr, FactorModel model) {
+        this(tr, model, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Build the scorer.
+     *
+     * @param tr       The data.
+     * @param model    The trained model.
+     * @param nThreads The number of threads scoring the users.
+     */
+    public BatchScorer(Transformation tr, FactorModel model, int nThreads) {
+        this.tr = tr;
+        this.nFactors = model.getNumFactors();
+        this.nThreads = Math.max(1, nThreads);
+        float[] sums = new float[nFactors];
+
+        this.items = tr.getItemList();
+        int nItems = items.size();
+        this.itemBiases = new float[nItems];
+        this.itemVectors = new float[nFactors * nItems];
+        this.itemCategories = new int[nItems];
+        for (int i = 0; i < nItems; i++) {
+            String item = items.get(i);
+            Integer category = tr.getCategory(item);
+            itemCategories[i] = category == null ? -1 : category;
+            int[] itemFeatures = tr.getItemFeatures(item);
+            int[] features = new int[(category == null ? 1 : 2) + itemFeatures.length];
+            features[0] = tr.mapItemNameToID(item);
+            if (category != null)
+                features[1] = category;
+            System.arraycopy(itemFeatures, 0, features, features.length - itemFeatures.length, itemFeatures.length);
+            itemBiases[i] = sumFactors(model, features, sums);
+            for (int f = 0; f < nFactors; f++)
+                itemVectors[f * nItems + i] = sums[f];
+        }
+
+        int[] itemIDs = tr.getItemIDs();             // in the order of the items
+        List<String> users = tr.getUserList();
+        this.userBiases = new float[users.size()];
+        this.userVectors = new float[users.size() * nFactors];
+        this.seenItems = new int[users.size()][];
+        for (int u = 0; u < users.size(); u++) {
+            String user = users.get(u);
+            userIndexMap.put(user, u);
+            int[] userFeatures = tr.getUserFeatures(user);
+            int[] features = new int[1 + userFeatures.length];
+            features[0] = tr.mapUserNameToID(user);
+            System.arraycopy(userFeatures, 0, features, 1, userFeatures.length);
+            userBiases[u] = model.getBias() + sumFactors(model, features, sums);
+            System.arraycopy(sums, 0, userVectors, u * nFactors, nFactors);
+
+            int[] seen = tr.getSeenItemIDs(features[0]);
+            seenItems[u] = new int[seen.length];
+            for (int k = 0; k < seen.length; k++)
+                seenItems[u][k] = Arrays.binarySearch(itemIDs, seen[k]);
+        }
+    }
+
+    /**
+     * Rank the full lists (<tt>N == 0</tt>) in at most <tt>budget</tt> items of memory altogether, spilling sorted runs to temporary files
+     * (see <tt>ExternalRanking</tt>), instead of keeping whole lists in memory. The budget is divided among the lists being ranked at once.
+     *
+     * @param budget The number of items kept in memory by all the lists being ranked, or 0 to keep whole lists in memory.
+     */
+    public void setListBudget(int budget) {
+        this.listBudget = budget;
+    }
+
+    /**
+     * Sum up the weights, the factors and the pairwise interactions of some features.
+     * Features unknown to the model (added after it has been trained) are rejected, like <tt>FactorModel.predict</tt> does.
+     *
+     * @param  model    The model.
+     * @param  features The feature IDs.
+     * @param  sums     Where to store the sums of the factors.
+     * @return          The sum of the weights and the interactions.
+     */
+    private float sumFactors(FactorModel model, int[] features, float[] sums) {
+        double bias = 0.0;
+        Arrays.fill(sums, 0.0f);
+        for (int j : features) {
+            model.checkFeature(j);
+            bias += model.getWeight(j);
+            for (int f = 0; f < nFactors; f++) {
+                float v = model.getFactor(j, f);
+                sums[f] += v;
+                bias -= 0.5 * v * v;
+            }
+        }
+        for (int f = 0; f < nFactors; f++)
+            bias += 0.5 * sums[f] * sums[f];
+        return (float) bias;
+    }
+
+    /**
+     * Recommend the top-<tt>N</tt> unseen items for every user, or for every user and every category,
+     * and pass the lists to <tt>out</tt> in the order of the users (and the categories within each user).
+     * Blocks of users are scored in parallel.
+     *
+     * @param  users       The user names.
+     * @param  categories  The category names, or <tt>null</tt> to recommend from all items.
+     * @param  N           The length of the lists, or 0 for all unseen items.
+     * @param  out         Where to pass the lists.
+     * @throws IOException if <tt>out</tt> fails to write a list.
+     */
+    public void recommend(final List<String> users, final List<String> categories, final int N, Output out) throws IOException {
+        final int nLists = categories == null ? 1 : categories.size();
+        final int[] itemListIndices = getItemListIndices(categories);
+        int blockSize = USER_BLOCK;
+        int rankingBudget = 0;
+        if (N == 0 && listBudget > 0) {
+            // up to nThreads * 2 blocks of blockSize * nLists rankings are alive at once, and they share the budget
+            // (each ranking counts the buffer of its sort in its share, and keeps its runs open only while it is merged or read);
+            // the blocks are only larger than a user when all of their lists fit in the budget
+            int liveBlocks = nThreads * 2;
+            blockSize = (int) Math.max(1, Math.min(USER_BLOCK, listBudget / ((long) liveBlocks * nLists * Math.max(1, items.size()))));
+            rankingBudget = (int) Math.max(1, listBudget / ((long) liveBlocks * blockSize * nLists));
+        }
+        else if (N == 0)
+            blockSize = Math.max(1, Math.min(USER_BLOCK, MAX_BLOCK_CANDIDATES / Math.max(1, items.size())));
+        final int budget = rankingBudget;
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        LinkedList<Future<Selection[]>> pending = new LinkedList<Future<Selection[]>>();
+        Selection[] lists = null;
+        try {
+            int submitted = 0;
+            int written = 0;
+            while (written < users.size()) {
+                // keep a few blocks ahead of the writing
+                while (submitted < users.size() && pending.size() < nThreads * 2) {
+                    final int from = submitted;
+                    final int to = Math.min(users.size(), from + blockSize);
+                    final boolean[][] scored = new boolean[to - from][nLists];
+                    for (int b = 0; b < to - from; b++)
+                        for (int c = 0; c < nLists; c++)
+                            scored[b][c] = userIndexMap.containsKey(users.get(from + b)) && out.isScored(users.get(from + b), categories == null ? null : categories.get(c));
+                    pending.add(executor.submit(new Callable<Selection[]>() {
+                        public Selection[] call() throws IOException {
+                            return recommendBlock(users.subList(from, to), scored, itemListIndices, nLists, N, budget);
+                        }
+                    }));
+                    submitted = to;
+                }
+
+                lists = pending.removeFirst().get();
+                for (int b = 0; b < lists.length / nLists; b++, written++) {
+                    for (int c = 0; c < nLists; c++) {
+                        Selection list = lists[b * nLists + c];
+                        out.write(users.get(written), categories == null ? null : categories.get(c), list == null ? null : list.getItems(items));
+                    }
+                }
+                close(lists);
+                lists = null;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scoring the users", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Failed to score the users", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+            // the spilled runs of the lists not written
+            if (lists != null)
+                close(lists);
+            for (Future<Selection[]> block : pending) {
+                try {
+                    close(block.get());
+                } catch (InterruptedException | ExecutionException | CancellationException ex) {
+                    // nothing has been spilled by a block which has not finished
+                }
+            }
+        }
+    }
+
+    private static void close(Selection[] lists) throws IOException {
+        for (Selection list : lists)
+            if (list != null)
+                list.close();
+    }
+
+    /**
+     * Get the list each item belongs to: 0 without categories, or the position of its category in <tt>categories</tt> (-1 for none).
+     */
+    private int[] getItemListIndices(List<String> categories) {
+        int[] itemListIndices = new int[items.size()];
+        if (categories == null)
+            return itemListIndices;
+        HashMap<Integer, Integer> categoryPositions = new HashMap<Integer, Integer>();
+        for (int c = 0; c < categories.size(); c++)
+            categoryPositions.put(tr.mapCategoryNameToID(categories.get(c)), c);
+        for (int i = 0; i < items.size(); i++) {
+            Integer position = itemCategories[i] < 0 ? null : categoryPositions.get(itemCategories[i]);
+            itemListIndices[i] = position == null ? -1 : position;
+        }
+        return itemListIndices;
+    }
+
+    /**
+     * Score a block of users against all items, tile by tile.
+     *
+     * @param  users            The user names of the block.
+     * @param  scored           Which lists of each user are needed.
+     * @param  itemListIndices  The list each item belongs to, or -1.
+     * @param  nLists           The number of lists of each user.
+     * @param  N                The length of the lists, or 0 for all unseen items.
+     * @param  budget           The items of each full list kept in memory, or 0 for all.
+     * @throws IOException      if fails to spill a full list to a temporary file.
+     * @return                  The ranked lists, user by user and list by list (<tt>null</tt> for the lists not needed).
+     */
+    Selection[] recommendBlock(List<String> users, boolean[][] scored, int[] itemListIndices, int nLists, int N, int budget) throws IOException {
+        int nUsers = users.size();
+        int nItems = items.size();
+        int[] rows = new int[nUsers];
+        boolean[] active = new boolean[nUsers];
+        Selection[] selections = new Selection[nUsers * nLists];
+        for (int b = 0; b < nUsers; b++) {
+            for (int c = 0; c < nLists; c++) {
+                if (scored[b][c]) {
+                    selections[b * nLists + c] = N == 0 && budget > 0 ? new FullList(budget) : new TopN(N);
+                    active[b] = true;
+                }
+            }
+            Integer row = userIndexMap.get(users.get(b));
+            rows[b] = row == null ? -1 : row;
+        }
+
+        float[] scores = new float[ITEM_TILE];
+        int[] seenPositions = new int[nUsers];
+        for (int from = 0; from < nItems; from += ITEM_TILE) {
+            int length = Math.min(ITEM_TILE, nItems - from);
+            for (int b = 0; b < nUsers; b++) {
+                if (!active[b])
+                    continue;
+                int u = rows[b];
+
+                // the scores of the tile: a bias plus a dot product, accumulated factor by factor over consecutive items
+                float userBias = userBiases[u];
+                for (int i = 0; i < length; i++)
+                    scores[i] = userBias + itemBiases[from + i];
+                for (int f = 0; f < nFactors; f++) {
+                    float p = userVectors[u * nFactors + f];
+                    int offset = f * nItems + from;
+                    for (int i = 0; i < length; i++)
+                        scores[i] += p * itemVectors[offset + i];
+                }
+
+                // the unseen items go to the selections of their lists
+                int[] seen = seenItems[u];
+                int s = seenPositions[b];
+                for (int i = 0; i < length; i++) {
+                    int item = from + i;
+                    if (s < seen.length && seen[s] == item) {
+                        s++;
+                        continue;
+                    }
+                    int list = itemListIndices[item];
+                    if (list < 0)
+                        continue;
+                    Selection selection = selections[b * nLists + list];
+                    if (selection != null)
+                        selection.offer(scores[i], item);
+                }
+                seenPositions[b] = s;
+            }
+        }
+
+        for (Selection selection : selections)
+            if (selection != null)
+                selection.finish();
+        return selections;
+    }
+
+    /**
+     * Keeps the <tt>N</tt> best items, each packed with its score into a <tt>long</tt> which sorts the best first
+     * (the higher score first, and the smaller item index first for the same score), so that no object is created per item.
+     */
+    static class TopN implements Selection {
+        int N;                                   // 0 to keep all items
+        long[] keys;
+        int size = 0;
+        float worst = Float.NEGATIVE_INFINITY;  // the score of the worst kept item once N items are kept
+
+        TopN(int N) {
+            this.N = N;
+            this.keys = new long[N > 0 ? N : 16];
+        }
+
+        static long pack(float score, int item) {
+            int bits = Float.floatToIntBits(score);
+            bits ^= (bits >> 31) & 0x7fffffff;   // ordered like the floats
+            return ((long) ~bits << 32) | (item & 0xffffffffL);
+        }
+
+        public void offer(float score, int item) {
+            if (score < worst)
+                return;
+            long key = pack(score, item);
+            if (N == 0) {
+                if (size == keys.length)
+                    keys = Arrays.copyOf(keys, size * 2);
+                keys[size++] = key;
+            }
+            else if (size < N) {
+                // a max-heap, the worst item at the root
+                int i = size++;
+                while (i > 0 && keys[(i - 1) / 2] < key) {
+                    keys[i] = keys[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                keys[i] = key;
+                if (size == N)
+                    worst = unpackScore(keys[0]);
+            }
+            else if (key < keys[0]) {
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size)
+                        break;
+                    if (child + 1 < size && keys[child + 1] > keys[child])
+                        child++;
+                    if (keys[child] <= key)
+                        break;
+                    keys[i] = keys[child];
+                    i = child;
+                }
+                keys[i] = key;
+                worst = unpackScore(keys[0]);
+            }
+        }
+
+        static float unpackScore(long key) {
+            int bits = ~(int) (key >>> 32);
+            bits ^= (bits >> 31) & 0x7fffffff;
+            return Float.intBitsToFloat(bits);
+        }
+
+        public void finish() {
+            Arrays.sort(keys, 0, size);
+        }
+
+        public Iterable<String> getItems(List<String> items) {
+            List<String> result = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++)
+                result.add(items.get((int) keys[i]));
+            return result;
+        }
+
+        public void close() {}
+    }
+
+    /**
+     * Ranks all offered items within a list budget by an <tt>ExternalRanking</tt>.
+     */
+    static class FullList implements Selection {
+        ExternalRanking ranking;
+
+        FullList(int budget) {
+            this.ranking = new ExternalRanking(budget);
+        }
+
+        public void offer(float score, int item) throws IOException {
+            ranking.add(item, score);
+        }
+
+        public void finish() throws IOException {
+            ranking.finish();
+        }
+
+        public Iterable<String> getItems(final List<String> items) {
+            return new Iterable<String>() {
+                public Iterator<String> iterator() {
+                    return new Iterator<String>() {
+                        boolean hasNext = advance();
+
+                        boolean advance() {
+                            try {
+                                return ranking.next();
+                            } catch (IOException ex) {
+                                throw new UncheckedIOException(ex);
+                            }
+                        }
+
+                        public boolean hasNext() { return hasNext; }
+
+                        public String next() {
+                            if (!hasNext)
+                                throw new NoSuchElementException();
+                            String item = items.get(ranking.getItem());
+                            hasNext = advance();
+                            return item;
+                        }
+                    };
+                }
+            };
+        }
+
+        public void close() throws IOException {
+            ranking.close();
+        }
+    }
+}
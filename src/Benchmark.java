@@ -0,0 +1,333 @@
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the pipeline of <tt>Evaluator</tt> on synthetic data of any scale, to see how it behaves long before the real data grows that large.
+ *
+ * <tt>generate</tt> writes a rating file and a category file, where the numbers of ratings of the users, the numbers of ratings of the items
+ * and the sizes of the categories follow power laws, like in real shops. The data only depends on the arguments and the seed.
+ * <tt>run</tt> loads the data and runs the selected stages one by one, and reports for every stage its wall-clock time,
+ * its throughput, and the peak resident memory of this process (read from <tt>/proc/self/status</tt>, so only on Linux).
+ * With the stub of libFM in <tt>bench/libfm-stub.sh</tt>, which answers at once without learning anything,
+ * the timings show the overhead of the pipeline itself. The memory of the libFM processes is not included.
+ *
+ * Usage:
+ * <pre>
+ * java -cp bin:lib/\* Benchmark generate DIR RATINGS USERS ITEMS CATEGORIES [-seed S] [-userexponent A] [-itemexponent B]
+ * java -cp bin:lib/\* Benchmark run LIBFMPATH DIR NFACTORS [-stages STAGES] [-topn N] [-format FORMAT] [-trainer sgd] [-listbudget M] [-candidates K] [-report FILE]
+ * </pre>
+ */
+public class Benchmark {
+    static final String RATING_FILE = "ratings.csv";
+    static final String CATEGORY_FILE = "categories.csv";
+    static final String OUTPUT_FILE = "output.csv";
+    static final String DEFAULT_STAGES = "encode,model,toplist,list,category";
+
+    /**
+     * Draws ranks from a power law: rank <tt>r</tt> (from 1) is drawn with a probability proportional to <tt>r^-exponent</tt>.
+     * The ranks are mapped to IDs by a random permutation, so the popular IDs are spread over the whole range.
+     */
+    static class PowerLaw {
+        final int n;
+        final double exponent;
+        final double scale;
+        final int[] order;
+
+        PowerLaw(int n, double exponent, Random random) {
+            this.n = n;
+            this.exponent = exponent;
+            this.scale = exponent == 1.0 ? Math.log(n + 1.0) : Math.pow(n + 1.0, 1.0 - exponent) - 1.0;
+            this.order = new int[n];
+            for (int i = 0; i < n; i++) {
+                int j = random.nextInt(i + 1);
+                order[i] = order[j];
+                order[j] = i;
+            }
+        }
+
+        /**
+         * @param  random The random number generator.
+         * @return        An ID from 0 to <tt>n - 1</tt>.
+         */
+        int next(Random random) {
+            // inverts the distribution function of the continuous power law on [1, n + 1)
+            double u = random.nextDouble();
+            double x = exponent == 1.0 ? Math.exp(u * scale) : Math.pow(u * scale + 1.0, 1.0 / (1.0 - exponent));
+            return order[Math.min(n - 1, (int) x - 1)];
+        }
+    }
+
+    /**
+     * Write a synthetic rating file <tt>DIR/ratings.csv</tt> with the columns user_id and item_id,
+     * and a category file <tt>DIR/categories.csv</tt> with the columns item_id and category_id (if <tt>nCategories</tt> is positive).
+     * A user and an item may be drawn together more than once, and some users and items may not be drawn at all,
+     * so the loaded data has somewhat fewer distinct ratings, users and items.
+     *
+     * @param  dir            The directory to write the files to.
+     * @param  nRatings       The number of rows of the rating file.
+     * @param  nUsers         The number of users to draw from.
+     * @param  nItems         The number of items to draw from.
+     * @param  nCategories    The number of categories, or 0 for no category file.
+     * @param  userExponent   The exponent of the power law of the users.
+     * @param  itemExponent   The exponent of the power law of the items (and of the sizes of the categories).
+     * @param  seed           The seed of the random numbers.
+     * @throws IOException    if fails to write a file.
+     */
+    public static void generate(Path dir, long nRatings, int nUsers, int nItems, int nCategories, double userExponent, double itemExponent, long seed) throws IOException {
+        Files.createDirectories(dir);
+        Random random = new Random(seed);
+        PowerLaw users = new PowerLaw(nUsers, userExponent, random);
+        PowerLaw items = new PowerLaw(nItems, itemExponent, random);
+
+        BufferedWriter writer = Files.newBufferedWriter(dir.resolve(RATING_FILE), StandardCharsets.UTF_8);
+        try {
+            writer.write("user_id,item_id");
+            writer.newLine();
+            for (long r = 0; r < nRatings; r++) {
+                writer.write(Integer.toString(users.next(random)));
+                writer.write(',');
+                writer.write(Integer.toString(items.next(random)));
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+
+        Files.deleteIfExists(dir.resolve(CATEGORY_FILE));
+        if (nCategories <= 0)
+            return;
+        PowerLaw categories = new PowerLaw(nCategories, itemExponent, random);
+        writer = Files.newBufferedWriter(dir.resolve(CATEGORY_FILE), StandardCharsets.UTF_8);
+        try {
+            writer.write("item_id,category_id");
+            writer.newLine();
+            for (int item = 0; item < nItems; item++) {
+                writer.write(Integer.toString(item));
+                writer.write(',');
+                writer.write(Integer.toString(categories.next(random)));
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * The measurements of a stage.
+     */
+    static class Result {
+        String stage;
+        double seconds;
+        long count;
+        String unit;
+        long peakKB;
+
+        Result(String stage, double seconds, long count, String unit, long peakKB) {
+            this.stage = stage;
+            this.seconds = seconds;
+            this.count = count;
+            this.unit = unit;
+            this.peakKB = peakKB;
+        }
+
+        public String toString() {
+            return String.format("%-10s %10.3f %12d %-8s %14.1f %14s", stage, seconds, count, unit, count / Math.max(seconds, 1e-9),
+                    peakKB < 0 ? "-" : String.valueOf(peakKB / 1024));
+        }
+    }
+
+    /**
+     * Load the data generated by <tt>generate()</tt> from <tt>dir</tt>, and run the stages one by one,
+     * with the output files in <tt>DIR/output.csv</tt>, <tt>DIR/output.csv.list</tt> etc.
+     * The stage <tt>encode</tt> writes all of the ratings in the libFM format once, like the training file shared by the other stages.
+     * The other stages are those of <tt>Evaluator</tt>, and the recommender settings are taken from <tt>Evaluator</tt>.
+     *
+     * @param  libfmPath   The file path of the libFM executable (or of the stub).
+     * @param  dir         The directory of the generated data.
+     * @param  nFactors    The number of latent factors.
+     * @param  stages      The names of the stages to run, in this order.
+     * @param  N           The number of items in the top-N lists.
+     * @param  format      The format of the recommendation lists accepted by <tt>ListWriter.open</tt>.
+     * @throws IOException if error occurs at file IO.
+     * @return             The measurements of the loading (as the stage <tt>load</tt>) and the stages.
+     */
+    public static List<Result> run(String libfmPath, Path dir, int nFactors, List<String> stages, int N, String format) throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        String outputPath = dir.resolve(OUTPUT_FILE).toString();
+        Path categoryPath = dir.resolve(CATEGORY_FILE);
+
+        resetPeakMemory();
+        long start = System.nanoTime();
+        Transformation tr = Evaluator.loadCSV(dir.resolve(RATING_FILE).toString(), 0, 1, Files.exists(categoryPath) ? categoryPath.toString() : null);
+        long nRatings = tr.getRatingTriples().size();
+        long nUsers = Evaluator.getShardUsers(tr).size();
+        results.add(measure("load", start, nRatings, "ratings"));
+        System.out.println("Loaded " + nRatings + " ratings of " + nUsers + " users, " + tr.getItemList().size() + " items and " + tr.getCategorySet().size() + " categories");
+
+        Recommender model = Evaluator.newRecommender(tr, libfmPath, nFactors);
+        try {
+            for (String stage : stages) {
+                resetPeakMemory();
+                start = System.nanoTime();
+                if (stage.equals("encode")) {
+                    Path encodedPath = Paths.get(outputPath + ".libfm");
+                    tr.writeOutputFile(encodedPath.toString());
+                    Files.delete(encodedPath);
+                    results.add(measure(stage, start, nRatings, "ratings"));
+                }
+                else if (stage.equals("loocv")) {
+                    Evaluator.loocv(tr, libfmPath, outputPath, nFactors);
+                    results.add(measure(stage, start, nRatings, "folds"));
+                }
+                else if (stage.equals("approx")) {
+                    Evaluator.approximateLoocv(tr, outputPath + ".approx", nFactors);
+                    results.add(measure(stage, start, nRatings, "folds"));
+                }
+                else if (stage.equals("model")) {
+                    if (Evaluator.trainInProcess)
+                        model.trainInProcess(outputPath + ".model");
+                    else
+                        model.train(outputPath + ".model");
+                    results.add(measure(stage, start, nRatings, "ratings"));
+                }
+                else if (stage.equals("toplist") || stage.equals("list")) {
+                    Evaluator.recommend(model, stage, outputPath + "." + stage, format, N);
+                    results.add(measure(stage, start, nUsers, "lists"));
+                }
+                else if (stage.equals("category") && !tr.getCategorySet().isEmpty()) {
+                    Evaluator.recommend(model, stage, outputPath + "." + stage, format, N);
+                    results.add(measure(stage, start, nUsers * tr.getCategoryList().size(), "lists"));
+                }
+                else if (!stage.equals("category"))
+                    throw new IllegalArgumentException("Unknown stage: " + stage);
+            }
+        } finally {
+            model.close();
+        }
+        return results;
+    }
+
+    /**
+     * @return The measurements of a stage which started at <tt>start</tt> (by <tt>System.nanoTime()</tt>) and has just finished.
+     */
+    static Result measure(String stage, long start, long count, String unit) {
+        return new Result(stage, (System.nanoTime() - start) / 1e9, count, unit, readMemoryStatus("VmHWM"));
+    }
+
+    /**
+     * Read a memory size of this process from <tt>/proc/self/status</tt>.
+     *
+     * @param  key The name of the size, like "VmHWM" (the peak resident memory) or "VmRSS".
+     * @return     The size in kB, or -1 if unknown.
+     */
+    static long readMemoryStatus(String key) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8))
+                if (line.startsWith(key + ":"))
+                    return Long.parseLong(line.substring(key.length() + 1).trim().split("\\s+")[0]);
+        } catch (IOException ex) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    /**
+     * Reset the peak resident memory to the current one, so that the peak of every stage is measured separately.
+     * Without the support of the kernel (Linux 4.0 or later), the peaks are those since the start of the process.
+     */
+    static void resetPeakMemory() {
+        try {
+            Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            // the peak is not reset
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length >= 6 && args[0].equals("generate")) {
+                long seed = 1;
+                double userExponent = 0.8;
+                double itemExponent = 1.0;
+                for (int argIdx = 6; argIdx < args.length; argIdx++) {
+                    if (args[argIdx].equals("-seed") && argIdx + 1 < args.length)
+                        seed = Long.parseLong(args[++argIdx]);
+                    else if (args[argIdx].equals("-userexponent") && argIdx + 1 < args.length)
+                        userExponent = Double.parseDouble(args[++argIdx]);
+                    else if (args[argIdx].equals("-itemexponent") && argIdx + 1 < args.length)
+                        itemExponent = Double.parseDouble(args[++argIdx]);
+                    else
+                        usage("unknown argument " + args[argIdx]);
+                }
+                long start = System.nanoTime();
+                generate(Paths.get(args[1]), Long.parseLong(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]),
+                        userExponent, itemExponent, seed);
+                System.out.println("Generated " + args[2] + " ratings in " + args[1] + " (" + String.format("%.3f", (System.nanoTime() - start) / 1e9) + "s)");
+            }
+            else if (args.length >= 4 && args[0].equals("run")) {
+                String stages = DEFAULT_STAGES;
+                int N = 5;
+                String format = "text";
+                String reportPath = null;
+                for (int argIdx = 4; argIdx < args.length; argIdx++) {
+                    if (args[argIdx].equals("-stages") && argIdx + 1 < args.length)
+                        stages = args[++argIdx];
+                    else if (args[argIdx].equals("-topn") && argIdx + 1 < args.length)
+                        N = Integer.parseInt(args[++argIdx]);
+                    else if (args[argIdx].equals("-format") && argIdx + 1 < args.length)
+                        format = args[++argIdx];
+                    else if (args[argIdx].equals("-trainer") && argIdx + 1 < args.length)
+                        Evaluator.trainInProcess = args[++argIdx].equals("sgd");
+                    else if (args[argIdx].equals("-listbudget") && argIdx + 1 < args.length)
+                        Evaluator.listBudget = Integer.parseInt(args[++argIdx]);
+                    else if (args[argIdx].equals("-candidates") && argIdx + 1 < args.length)
+                        Evaluator.candidateCount = Integer.parseInt(args[++argIdx]);
+                    else if (args[argIdx].equals("-report") && argIdx + 1 < args.length)
+                        reportPath = args[++argIdx];
+                    else
+                        usage("unknown argument " + args[argIdx]);
+                }
+
+                long start = System.nanoTime();
+                List<Result> results = run(args[1], Paths.get(args[2]), Integer.parseInt(args[3]), Arrays.asList(stages.split(",")), N, format);
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                System.out.println();
+                System.out.println(String.format("%-10s %10s %12s %-8s %14s %14s", "stage", "seconds", "count", "unit", "per second", "peak RSS (MB)"));
+                for (Result result : results)
+                    System.out.println(result);
+                System.out.println(String.format("%-10s %10.3f", "total", seconds));
+
+                if (reportPath != null) {
+                    boolean isNew = !Files.exists(Paths.get(reportPath));
+                    BufferedWriter report = Files.newBufferedWriter(Paths.get(reportPath), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    try {
+                        if (isNew) {
+                            report.write("data,stage,seconds,count,unit,per_second,peak_rss_kb");
+                            report.newLine();
+                        }
+                        for (Result result : results) {
+                            report.write(args[2] + "," + result.stage + "," + result.seconds + "," + result.count + "," + result.unit + ","
+                                    + (result.count / Math.max(result.seconds, 1e-9)) + "," + result.peakKB);
+                            report.newLine();
+                        }
+                    } finally {
+                        report.close();
+                    }
+                }
+            }
+            else
+                usage("number of argument is wrong");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    static void usage(String error) {
+        System.out.println("\nERROR: " + error + ". Please see the README file.\n\n");
+        System.exit(-1);
+    }
+}
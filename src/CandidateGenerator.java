@@ -0,0 +1,229 @@
+import java.util.*;
+
+/**
+ * Picks a small set of candidate items for a user before they are scored, so that the scoring cost does not grow with the catalog size.
+ * A candidate is always an item the user has not rated yet, and belongs to the requested category if a category is given.
+ * The generators are snapshots of the data when they are built: the items and the ratings are those of that version
+ * (see <tt>Transformation.view()</tt>), so a newer version may have to filter the candidates again.
+ */
+public interface CandidateGenerator {
+    /**
+     * Pick at most <tt>K</tt> candidate items for a user.
+     *
+     * @param  user     The user name.
+     * @param  category The category name, or <tt>null</tt> for all categories.
+     * @param  K        The maximum number of candidates.
+     * @return          The candidate items, the most promising first.
+     */
+    List<String> generate(String user, String category, int K);
+
+    /**
+     * Create a generator by name.
+     *
+     * @param  name       <tt>"popularity"</tt>, <tt>"category"</tt>, <tt>"cooccurrence"</tt> or <tt>"mixed"</tt>.
+     * @param  tr         The data.
+     * @param  similarity The item-item similarities used by <tt>"cooccurrence"</tt> and <tt>"mixed"</tt>, shared with the rest of the system.
+     * @return            The generator.
+     */
+    static CandidateGenerator create(String name, Transformation tr, ItemSimilarity similarity) {
+        if (name.equals("popularity"))
+            return new Popularity(tr);
+        if (name.equals("category"))
+            return new UserCategories(tr, new Popularity(tr));
+        if (name.equals("cooccurrence") || name.equals("mixed")) {
+            if (similarity == null)
+                throw new IllegalArgumentException("The candidate generator " + name + " needs the item-item similarities");
+            if (name.equals("cooccurrence"))
+                return new CoOccurrence(similarity);
+            Popularity popularity = new Popularity(tr);
+            return new Mixed(new CoOccurrence(similarity), new UserCategories(tr, popularity), popularity);
+        }
+        throw new IllegalArgumentException("Unknown candidate generator: " + name);
+    }
+
+    /**
+     * @return Whether the generator of the name uses the item-item similarities.
+     */
+    static boolean usesItemSimilarity(String name) {
+        return name.equals("cooccurrence") || name.equals("mixed");
+    }
+
+    /**
+     * The items rated by the most users.
+     */
+    class Popularity implements CandidateGenerator {
+        Transformation tr;
+        int[] itemIDs;                               // all items, the most popular first
+        HashMap<Integer, int[]> categoryItemIDs = new HashMap<Integer, int[]>();
+
+        public Popularity(Transformation tr) {
+            this.tr = tr.view();
+            Transformation data = this.tr;
+            final HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+            for (int itemID : data.getItemIDs())
+                counts.put(itemID, 0);
+            for (String user : data.getUserList())
+                for (int itemID : data.getSeenItemIDs(data.mapUserNameToID(user)))
+                    counts.put(itemID, counts.get(itemID) + 1);
+
+            Integer[] order = new Integer[counts.size()];
+            int n = 0;
+            for (int itemID : data.getItemIDs())     // ordered by item IDs, so that ties are broken by the IDs
+                order[n++] = itemID;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer item1, Integer item2) {
+                    return -Integer.compare(counts.get(item1), counts.get(item2));
+                }
+            });
+            this.itemIDs = new int[order.length];
+            HashMap<Integer, List<Integer> > categories = new HashMap<Integer, List<Integer> >();
+            for (int k = 0; k < order.length; k++) {
+                this.itemIDs[k] = order[k];
+                Integer category = data.getCategory(order[k].intValue());
+                if (category == null)
+                    continue;
+                if (!categories.containsKey(category))
+                    categories.put(category, new ArrayList<Integer>());
+                categories.get(category).add(order[k]);
+            }
+            for (Map.Entry<Integer, List<Integer> > category : categories.entrySet()) {
+                int[] pool = new int[category.getValue().size()];
+                for (int k = 0; k < pool.length; k++)
+                    pool[k] = category.getValue().get(k);
+                categoryItemIDs.put(category.getKey(), pool);
+            }
+        }
+
+        public List<String> generate(String user, String category, int K) {
+            Transformation data = tr;
+            int[] pool = itemIDs;
+            if (category != null) {
+                if (!data.getCategorySet().contains(category))
+                    return new ArrayList<String>();
+                pool = categoryItemIDs.get(data.mapCategoryNameToID(category));
+                if (pool == null)
+                    return new ArrayList<String>();
+            }
+            List<String> candidates = new ArrayList<String>();
+            addUnseen(data, getSeenItemIDs(data, user), pool, K, candidates);
+            return candidates;
+        }
+
+        /**
+         * @param  categoryID The category ID.
+         * @return            The IDs of the items of a category, the most popular first.
+         */
+        int[] getCategoryItemIDs(int categoryID) {
+            int[] pool = categoryItemIDs.get(categoryID);
+            return pool == null ? new int[0] : pool;
+        }
+
+        /**
+         * @param  data A version of the data.
+         * @param  user The user name.
+         * @return      The IDs of the items rated by the user in ascending order (empty if the user is unknown).
+         */
+        static int[] getSeenItemIDs(Transformation data, String user) {
+            return data.getUserSet().contains(user) ? data.getSeenItemIDs(data.mapUserNameToID(user)) : new int[0];
+        }
+
+        /**
+         * Add the items of a pool not in the sorted <tt>seen</tt> IDs to the candidates, until there are <tt>K</tt> of them.
+         *
+         * @param  data       A version of the data.
+         * @param  seen       The IDs of the items rated by the user in ascending order.
+         * @param  pool       The IDs of the items to pick from, in order.
+         * @param  K          The maximum number of candidates.
+         * @param  candidates The candidates to add to.
+         * @return            Whether <tt>K</tt> candidates have been picked.
+         */
+        static boolean addUnseen(Transformation data, int[] seen, int[] pool, int K, List<String> candidates) {
+            for (int itemID : pool) {
+                if (candidates.size() >= K)
+                    return true;
+                if (Arrays.binarySearch(seen, itemID) < 0)
+                    candidates.add(data.mapItemIDToName(itemID));
+            }
+            return candidates.size() >= K;
+        }
+    }
+
+    /**
+     * The most popular items of the categories the user has rated items of, the user's most frequent category first.
+     */
+    class UserCategories implements CandidateGenerator {
+        Transformation tr;
+        Popularity popularity;
+
+        public UserCategories(Transformation tr, Popularity popularity) {
+            this.tr = popularity.tr;              // the same version as the popular items
+            this.popularity = popularity;
+        }
+
+        public List<String> generate(String user, String category, int K) {
+            if (category != null)
+                return popularity.generate(user, category, K);
+
+            Transformation data = tr;
+            int[] seen = Popularity.getSeenItemIDs(data, user);
+            final HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+            for (int itemID : seen) {
+                Integer itemCategory = data.getCategory(itemID);
+                if (itemCategory != null)
+                    counts.put(itemCategory, counts.containsKey(itemCategory) ? counts.get(itemCategory) + 1 : 1);
+            }
+            List<Integer> categories = new ArrayList<Integer>(new TreeSet<Integer>(counts.keySet()));
+            Collections.sort(categories, new Comparator<Integer>() {
+                public int compare(Integer category1, Integer category2) {
+                    return -Integer.compare(counts.get(category1), counts.get(category2));
+                }
+            });
+
+            List<String> candidates = new ArrayList<String>();
+            for (int userCategory : categories)
+                if (Popularity.addUnseen(data, seen, popularity.getCategoryItemIDs(userCategory), K, candidates))
+                    break;
+            return candidates;
+        }
+    }
+
+    /**
+     * The items most similar to the items of the user by their co-occurrence (see <tt>ItemSimilarity</tt>).
+     */
+    class CoOccurrence implements CandidateGenerator {
+        ItemSimilarity similarity;
+
+        public CoOccurrence(ItemSimilarity similarity) {
+            this.similarity = similarity;
+        }
+
+        public List<String> generate(String user, String category, int K) {
+            return similarity.recommend(user, category, K);
+        }
+    }
+
+    /**
+     * The candidates of several generators, taken in order until <tt>K</tt> distinct items are picked.
+     */
+    class Mixed implements CandidateGenerator {
+        CandidateGenerator[] generators;
+
+        public Mixed(CandidateGenerator... generators) {
+            this.generators = generators;
+        }
+
+        public List<String> generate(String user, String category, int K) {
+            LinkedHashSet<String> candidates = new LinkedHashSet<String>();
+            for (CandidateGenerator generator : generators) {
+                if (candidates.size() >= K)
+                    break;
+                for (String item : generator.generate(user, category, K)) {
+                    if (candidates.size() >= K)
+                        break;
+                    candidates.add(item);
+                }
+            }
+            return new ArrayList<String>(candidates);
+        }
+    }
+}
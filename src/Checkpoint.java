@@ -0,0 +1,248 @@
+import java.io.*;
+import java.util.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An append-only log of the finished units of a long-running job (the folds of a leave-one-out cross validation, or the users of a batch recommendation),
+ * so that the job can be killed and restarted without redoing them.
+ *
+ * The first line of the file is a fingerprint of the inputs and the settings of the job.
+ * Every following line is a finished unit: its key and its result separated by a tab, written and flushed as soon as the unit is finished.
+ * A restart with the same fingerprint skips the finished units; with a different fingerprint, the log is started over.
+ * A line cut off by a crash is dropped.
+ *
+ * The units must be processed in the same order in every run, so that the log is in the order of the final output.
+ */
+public class Checkpoint implements Closeable {
+    static final String HEADER_PREFIX = "# checkpoint ";
+
+    Path path;
+    HashSet<String> doneKeys = new HashSet<String>();
+    Writer out;
+
+    /**
+     * Open a checkpoint, resuming it if it has been written by a job with the same fingerprint.
+     *
+     * @param  path        The checkpoint file path.
+     * @param  fingerprint The fingerprint of the inputs and the settings of the job (see <tt>fingerprint()</tt>).
+     * @throws IOException if the file cannot be read or written.
+     */
+    public Checkpoint(Path path, String fingerprint) throws IOException {
+        this.path = path;
+        String header = HEADER_PREFIX + fingerprint;
+        long validLength = 0;
+        if (Files.exists(path)) {
+            // reads the complete lines only
+            BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+            String line = reader.readLine();
+            if (header.equals(line)) {
+                validLength = header.getBytes(StandardCharsets.UTF_8).length + 1;
+                long fileSize = Files.size(path);
+                while ((line = reader.readLine()) != null) {
+                    long lineEnd = validLength + line.getBytes(StandardCharsets.UTF_8).length + 1;
+                    if (lineEnd > fileSize || line.indexOf('\t') < 0)
+                        break;   // cut off by a crash
+                    doneKeys.add(line.substring(0, line.indexOf('\t')));
+                    validLength = lineEnd;
+                }
+            }
+            reader.close();
+        }
+
+        if (validLength == 0) {
+            out = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+            out.write(header);
+            out.write('\n');
+            out.flush();
+        }
+        else {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            channel.truncate(validLength);
+            channel.close();
+            out = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Compute the fingerprint of the data and the settings of a job.
+     *
+     * @param  tr       The data.
+     * @param  settings The settings of the job, like the stage, the number of factors and so on.
+     * @return          The fingerprint.
+     */
+    public static String fingerprint(Transformation tr, String... settings) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String setting : settings)
+                digest.update((setting + "\n").getBytes(StandardCharsets.UTF_8));
+            LibfmEncoder lines = new LibfmEncoder(tr);
+            lines.addAll(tr.getRatingTriples());
+            digest.update(lines.buffer, 0, lines.length);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return The number of finished units, including those of the earlier runs.
+     */
+    public int getDoneCount() { return doneKeys.size(); }
+
+    /**
+     * @param  key The key of a unit.
+     * @return     Whether the unit has been finished.
+     */
+    public boolean isDone(String key) {
+        return doneKeys.contains(key);
+    }
+
+    /**
+     * Record a finished unit.
+     *
+     * @param  key         The key of the unit (without tabs or line breaks).
+     * @param  result      The result of the unit (without line breaks).
+     * @throws IOException if fails to write the file.
+     */
+    public void record(String key, String result) throws IOException {
+        out.write(key);
+        out.write('\t');
+        out.write(result);
+        out.write('\n');
+        out.flush();
+        doneKeys.add(key);
+    }
+
+    /**
+     * Read all of the finished units in the order they have been recorded.
+     * Call this function after <tt>close()</tt>.
+     *
+     * @return             The {key, result} pairs.
+     * @throws IOException if fails to read the file.
+     */
+    public Iterable<String[]> entries() throws IOException {
+        return new Iterable<String[]>() {
+            public Iterator<String[]> iterator() {
+                try {
+                    final BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+                    reader.readLine();   // skips the header
+                    return new Iterator<String[]>() {
+                        String line = reader.readLine();
+
+                        public boolean hasNext() { return line != null; }
+
+                        public String[] next() {
+                            if (line == null)
+                                throw new NoSuchElementException();
+                            String[] entry = line.split("\t", 2);
+                            try {
+                                line = reader.readLine();
+                                if (line == null)
+                                    reader.close();
+                            } catch (IOException ex) {
+                                throw new UncheckedIOException(ex);
+                            }
+                            return entry;
+                        }
+                    };
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Delete the checkpoint file once the job has finished.
+     *
+     * @throws IOException if fails to delete the file.
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * A <tt>ListWriter</tt> which records every record in a checkpoint (the key is the user, or the user and the category separated by a comma),
+     * and writes the real output only when the job has finished.
+     */
+    public static class CheckpointedListWriter extends ListWriter {
+        Checkpoint checkpoint;
+        String outputPath;
+        String format;
+        boolean hasCategory;
+        String key;
+        StringBuilder items = new StringBuilder();
+
+        /**
+         * @param  outputPath  The output file path.
+         * @param  format      The output format accepted by <tt>ListWriter.open</tt>.
+         * @param  hasCategory Whether each record carries a category.
+         * @param  fingerprint The fingerprint of the inputs and the settings of the job.
+         * @throws IOException if the checkpoint cannot be opened.
+         */
+        public CheckpointedListWriter(String outputPath, String format, boolean hasCategory, String fingerprint) throws IOException {
+            this.checkpoint = new Checkpoint(Paths.get(outputPath + ".checkpoint"), fingerprint);
+            this.outputPath = outputPath;
+            this.format = format;
+            this.hasCategory = hasCategory;
+        }
+
+        public boolean isDone(String user, String category) {
+            return checkpoint.isDone(category == null ? user : user + "," + category);
+        }
+
+        public void beginRecord(String user, String category) {
+            key = category == null ? user : user + "," + category;
+            items.setLength(0);
+        }
+
+        public void addItem(String item) {
+            if (items.length() > 0)
+                items.append(' ');
+            items.append(item);
+        }
+
+        public void endRecord() throws IOException {
+            checkpoint.record(key, items.toString());
+        }
+
+        /**
+         * Write all of the recorded lists to the output file, and delete the checkpoint.
+         *
+         * @throws IOException if fails to read or write a file.
+         */
+        public void finish() throws IOException {
+            checkpoint.close();
+            ListWriter writer = ListWriter.open(outputPath, format, hasCategory);
+            try {
+                for (String[] entry : checkpoint.entries()) {
+                    String[] keys = entry[0].split(",", 2);
+                    writer.beginRecord(keys[0], hasCategory ? keys[1] : null);
+                    if (!entry[1].isEmpty())
+                        for (String item : entry[1].split(" "))
+                            writer.addItem(item);
+                    writer.endRecord();
+                }
+            } finally {
+                writer.close();
+            }
+            checkpoint.delete();
+        }
+
+        public void close() throws IOException {
+            checkpoint.close();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+/**
+ * Publishes the recommendation lists and the leave-one-out predictions to PostgreSQL tables, for the storefront to read.
+ *
+ * The rows are streamed into a staging table (the name of the table followed by "_staging") with the COPY protocol, in buffers of
+ * <tt>ListWriter.BUFFER_SIZE</tt> bytes, instead of being inserted one by one. The staging table is created in the same transaction,
+ * which then indexes it by user, drops the old table and renames the staging table, and commits. So the readers of the table see
+ * either all of the old rows or all of the new ones, and a failure on the way leaves the old table as it was.
+ *
+ * The tables have the columns:
+ * <ul>
+ * <li>lists: user_id text, category text (only if the lists have categories), items text (the items separated by spaces like the text format)</li>
+ * <li>predictions: user_id text, item_id text, answer double precision, prediction double precision</li>
+ * </ul>
+ */
+public class DatabasePublisher {
+    static final String STAGING_SUFFIX = "_staging";
+
+    /**
+     * Connect to a PostgreSQL database, with the settings accepted by <tt>Transformation.readDatabase</tt>.
+     *
+     * @param  databaseURL  The URL (consisting of the port number) of the database like "54.64.73.96:5432".
+     * @param  databaseName The name of the database like "oneclickshoppingwall".
+     * @param  account      An account to log in the database.
+     * @param  password     The password of the account.
+     * @throws IOException  if fails to connect.
+     * @return              The connection.
+     */
+    public static Connection connect(String databaseURL, String databaseName, String account, String password) throws IOException {
+        try {
+            return DriverManager.getConnection("jdbc:postgresql://" + databaseURL + "/" + databaseName, account, password);
+        } catch (SQLException ex) {
+            throw new IOException("Cannot connect to the database " + databaseName, ex);
+        }
+    }
+
+    /**
+     * Replace a table with the recommendation lists in a list file written by <tt>ListWriter</tt>.
+     * The file is decoded by <tt>ListReader</tt> in any format, and the table has a category column if the records carry categories.
+     *
+     * @param  connection  The connection to the database.
+     * @param  table       The name of the table.
+     * @param  listPath    The path of the list file (without the suffix of the format).
+     * @param  format      The format of the list file accepted by <tt>ListWriter.open</tt>.
+     * @throws IOException if fails to read the file or to write the table.
+     * @return             The number of the published lists.
+     */
+    public static long publishLists(Connection connection, String table, String listPath, String format) throws IOException {
+        ListReader reader = ListReader.open(listPath, format);
+        try {
+            TableListWriter writer = new TableListWriter(connection, table, reader.hasCategory());
+            try {
+                while (reader.next())
+                    writer.writeRecord(reader.getUser(), reader.getCategory(), reader.getItems());
+                return writer.publish();
+            } finally {
+                writer.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Replace a table with the predictions in a file written by <tt>Evaluator.loocv</tt> or <tt>Evaluator.approximateLoocv</tt>.
+     * The CSV file is copied as it is, without being parsed here.
+     *
+     * @param  connection     The connection to the database.
+     * @param  table          The name of the table.
+     * @param  predictionPath The path of the prediction file.
+     * @throws IOException    if fails to read the file or to write the table.
+     * @return                The number of the published predictions.
+     */
+    public static long publishPredictions(Connection connection, String table, String predictionPath) throws IOException {
+        InputStream in = Files.newInputStream(Paths.get(predictionPath));
+        boolean published = false;
+        try {
+            beginStaging(connection, table, "user_id text, item_id text, answer double precision, prediction double precision");
+            long count = ((PGConnection) connection).getCopyAPI().copyIn("COPY " + quote(table + STAGING_SUFFIX)
+                    + " (user_id, item_id, answer, prediction) FROM STDIN WITH (FORMAT csv, HEADER true)", in, ListWriter.BUFFER_SIZE);
+            swap(connection, table);
+            published = true;
+            return count;
+        } catch (SQLException ex) {
+            throw new IOException("Cannot publish the predictions to the table " + table, ex);
+        } finally {
+            in.close();
+            if (!published)
+                rollback(connection);
+        }
+    }
+
+    /**
+     * Start a transaction and create an empty staging table in it.
+     */
+    static void beginStaging(Connection connection, String table, String columns) throws SQLException {
+        connection.setAutoCommit(false);
+        Statement statement = connection.createStatement();
+        try {
+            statement.executeUpdate("DROP TABLE IF EXISTS " + quote(table + STAGING_SUFFIX));
+            statement.executeUpdate("CREATE TABLE " + quote(table + STAGING_SUFFIX) + " (" + columns + ")");
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Index the filled staging table, put it in place of the table, and commit the transaction.
+     */
+    static void swap(Connection connection, String table) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.executeUpdate("CREATE INDEX " + quote(table + STAGING_SUFFIX + "_user_id") + " ON " + quote(table + STAGING_SUFFIX) + " (user_id)");
+            statement.executeUpdate("ANALYZE " + quote(table + STAGING_SUFFIX));
+            statement.executeUpdate("DROP TABLE IF EXISTS " + quote(table));
+            statement.executeUpdate("ALTER TABLE " + quote(table + STAGING_SUFFIX) + " RENAME TO " + quote(table));
+            statement.executeUpdate("ALTER INDEX " + quote(table + STAGING_SUFFIX + "_user_id") + " RENAME TO " + quote(table + "_user_id"));
+        } finally {
+            statement.close();
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    /**
+     * Roll back the transaction after a failure, leaving the table as it was.
+     */
+    static void rollback(Connection connection) {
+        try {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException ex) {
+            // the connection is broken, and the server rolls back by itself
+        }
+    }
+
+    /**
+     * @return The name quoted as an SQL identifier.
+     */
+    static String quote(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Escape a value for the text format of COPY.
+     */
+    static String escape(String value) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement = c == '\\' ? "\\\\" : c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : null;
+            if (replacement != null && escaped == null)
+                escaped = new StringBuilder(value.substring(0, i));
+            if (escaped != null)
+                escaped.append(replacement != null ? replacement : String.valueOf(c));
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+
+    /**
+     * A <tt>ListWriter</tt> streaming the records into the staging table of a table, one row per record.
+     * Call <tt>publish()</tt> when all of the records are written; closing the writer without it rolls them back.
+     */
+    public static class TableListWriter extends ListWriter {
+        Connection connection;
+        String table;
+        PGCopyOutputStream copy;
+        Writer out;
+        String user;
+        String category;
+        boolean started;
+        boolean published;
+
+        /**
+         * Start a transaction, create the staging table and start copying into it.
+         *
+         * @param  connection  The connection to the database, used only by this writer until it is closed.
+         * @param  table       The name of the table.
+         * @param  hasCategory Whether each record carries a category.
+         * @throws IOException if fails to create the staging table.
+         */
+        public TableListWriter(Connection connection, String table, boolean hasCategory) throws IOException {
+            this.connection = connection;
+            this.table = table;
+            try {
+                beginStaging(connection, table, hasCategory ? "user_id text, category text, items text" : "user_id text, items text");
+                this.copy = new PGCopyOutputStream(((PGConnection) connection).getCopyAPI().copyIn("COPY " + quote(table + STAGING_SUFFIX)
+                        + (hasCategory ? " (user_id, category, items)" : " (user_id, items)") + " FROM STDIN"), BUFFER_SIZE);
+            } catch (SQLException ex) {
+                rollback(connection);
+                throw new IOException("Cannot create the staging table of " + table, ex);
+            }
+            this.out = new BufferedWriter(new OutputStreamWriter(copy, StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+
+        public void beginRecord(String user, String category) {
+            this.user = user;
+            this.category = category;
+            this.started = false;
+        }
+
+        public void addItem(String item) throws IOException {
+            if (!started)
+                startRow();
+            else
+                out.write(' ');
+            out.write(escape(item));
+        }
+
+        /**
+         * A record without items still gets its row, with empty items, so that the table has a row for every record.
+         */
+        public void endRecord() throws IOException {
+            if (!started)
+                startRow();
+            out.write('\n');
+            started = false;
+        }
+
+        private void startRow() throws IOException {
+            out.write(escape(user));
+            out.write('\t');
+            if (category != null) {
+                out.write(escape(category));
+                out.write('\t');
+            }
+            started = true;
+        }
+
+        /**
+         * Finish copying, and replace the table with the staging table.
+         *
+         * @throws IOException if fails to write the table.
+         * @return             The number of the published records.
+         */
+        public long publish() throws IOException {
+            try {
+                out.flush();
+                long count = copy.endCopy();
+                swap(connection, table);
+                published = true;
+                return count;
+            } catch (SQLException ex) {
+                throw new IOException("Cannot publish the lists to the table " + table, ex);
+            }
+        }
+
+        public void close() throws IOException {
+            if (published)
+                return;
+            try {
+                if (copy.isActive())
+                    copy.cancelCopy();
+            } catch (SQLException ex) {
+                // rolled back below anyway
+            }
+            rollback(connection);
+        }
+    }
+}
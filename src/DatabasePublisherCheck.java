@@ -0,0 +1,272 @@
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+
+/**
+ * Checks <tt>DatabasePublisher</tt> against a live PostgreSQL database: the row counts and the contents of the published tables
+ * in every list format, the replacement of a table instead of appending to it, the old rows staying visible to other connections
+ * until the swap is committed, a record without items getting a row with empty items, and a failed publication leaving the old table as it was.
+ *
+ * It only runs when the environment variable PUBLISH_CHECK_DATABASE is set, like "localhost:5432/test" (the URL and the name of a
+ * scratch database), with the account in PUBLISH_CHECK_ACCOUNT and the password in PUBLISH_CHECK_PASSWORD; otherwise it is skipped.
+ * The tables it creates start with "publish_check" and are dropped at the end. It exits with the status 1 if a check fails.
+ * bench/publish-check.sh runs it against a throwaway PostgreSQL server.
+ *
+ * Usage: java -cp bin:lib/\* DatabasePublisherCheck
+ */
+public class DatabasePublisherCheck {
+    static final String TABLE = "publish_check";
+    static final int RECORDS = 3000;
+
+    int failures = 0;
+    Path dir;
+    Connection connection;
+    Connection reader;   // another session, which sees only the committed tables
+
+    public static void main(String[] args) throws Exception {
+        String database = System.getenv("PUBLISH_CHECK_DATABASE");
+        if (database == null || database.isEmpty()) {
+            System.out.println("Skipped: set PUBLISH_CHECK_DATABASE (and PUBLISH_CHECK_ACCOUNT, PUBLISH_CHECK_PASSWORD) to run the checks");
+            return;
+        }
+        int slash = database.indexOf('/');
+        String account = System.getenv("PUBLISH_CHECK_ACCOUNT");
+        String password = System.getenv("PUBLISH_CHECK_PASSWORD");
+
+        DatabasePublisherCheck check = new DatabasePublisherCheck();
+        check.dir = Files.createTempDirectory("publish-check");
+        check.connection = DatabasePublisher.connect(database.substring(0, slash), database.substring(slash + 1), account, password);
+        check.reader = DatabasePublisher.connect(database.substring(0, slash), database.substring(slash + 1), account, password);
+        try {
+            for (String format : new String[] {"text", "gzip", "binary"})
+                for (boolean hasCategory : new boolean[] {false, true})
+                    check.checkLists(format, hasCategory);
+            check.checkVisibility();
+            check.checkEmptyRecord();
+            check.checkFailure();
+            check.checkPredictions();
+        } finally {
+            check.dropTables();
+            check.connection.close();
+            check.reader.close();
+            for (File file : check.dir.toFile().listFiles())
+                file.delete();
+            Files.delete(check.dir);
+        }
+        System.out.println(check.failures == 0 ? "All checks passed" : check.failures + " checks failed");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Publish a list file, check the rows, then publish a smaller file to the same table and check that it replaced the rows.
+     */
+    void checkLists(String format, boolean hasCategory) throws IOException, SQLException {
+        String table = TABLE + "_" + format + (hasCategory ? "_category" : "");
+        List<String[]> records = writeLists(dir.resolve(table).toString(), format, hasCategory, RECORDS);
+        long count = DatabasePublisher.publishLists(connection, table, dir.resolve(table).toString(), format);
+        check(count == RECORDS, table + ": publishLists returned " + count + " instead of " + RECORDS);
+        checkRows(table, records, hasCategory);
+        checkSwapped(table);
+
+        records = writeLists(dir.resolve(table).toString(), format, hasCategory, RECORDS / 3);
+        DatabasePublisher.publishLists(connection, table, dir.resolve(table).toString(), format);
+        checkRows(table, records, hasCategory);
+        checkSwapped(table);
+    }
+
+    /**
+     * While a table is being replaced, the other sessions still read the old rows; they read the new ones right after the swap.
+     */
+    void checkVisibility() throws IOException, SQLException {
+        String table = TABLE + "_visibility";
+        writeLists(dir.resolve(table).toString(), "text", false, RECORDS);
+        DatabasePublisher.publishLists(connection, table, dir.resolve(table).toString(), "text");
+
+        DatabasePublisher.TableListWriter writer = new DatabasePublisher.TableListWriter(connection, table, false);
+        try {
+            for (int r = 0; r < RECORDS / 2; r++)
+                writer.writeRecord("new" + r, null, Arrays.asList("a", "b"));
+            check(count(reader, table) == RECORDS, table + ": the old rows are not visible while publishing");
+            writer.publish();
+        } finally {
+            writer.close();
+        }
+        check(count(reader, table) == RECORDS / 2, table + ": the new rows are not visible after publishing");
+    }
+
+    /**
+     * A record without items is published as a row with empty items, instead of being left out.
+     */
+    void checkEmptyRecord() throws IOException, SQLException {
+        String table = TABLE + "_empty";
+        DatabasePublisher.TableListWriter writer = new DatabasePublisher.TableListWriter(connection, table, true);
+        try {
+            writer.writeRecord("user", "category", Arrays.asList("a", "b"));
+            writer.writeRecord("empty", "category", Collections.<String>emptyList());
+            long count = writer.publish();
+            check(count == 2, table + ": publish returned " + count + " instead of 2");
+        } finally {
+            writer.close();
+        }
+        checkRows(table, Arrays.asList(new String[] {"user", "category", "a", "b"}, new String[] {"empty", "category"}), true);
+    }
+
+    /**
+     * A list file broken in the middle fails the publication, and leaves the old table and no staging table behind.
+     */
+    void checkFailure() throws IOException, SQLException {
+        String table = TABLE + "_failure";
+        Path path = dir.resolve(table);
+        writeLists(path.toString(), "binary", false, RECORDS);
+        DatabasePublisher.publishLists(connection, table, path.toString(), "binary");
+
+        writeLists(path.toString(), "binary", false, RECORDS * 2);
+        FileChannel channel = FileChannel.open(Paths.get(path + ".bin"), StandardOpenOption.WRITE);
+        channel.truncate(channel.size() - 3);
+        channel.close();
+        boolean failed = false;
+        try {
+            DatabasePublisher.publishLists(connection, table, path.toString(), "binary");
+        } catch (IOException ex) {
+            failed = true;
+        }
+        check(failed, table + ": publishing a truncated file did not fail");
+        check(count(reader, table) == RECORDS, table + ": the old rows are not kept after a failure");
+        check(!exists(table + DatabasePublisher.STAGING_SUFFIX), table + ": the staging table is left after a failure");
+        check(connection.getAutoCommit(), table + ": the connection is left in a transaction after a failure");
+    }
+
+    /**
+     * The predictions are copied row by row, without the header.
+     */
+    void checkPredictions() throws IOException, SQLException {
+        String table = TABLE + "_loocv";
+        Path path = dir.resolve(table + ".csv");
+        BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+        out.write("user_id,item_id,answer,prediction\n");
+        for (int r = 0; r < RECORDS; r++)
+            out.write("u" + r + ",i" + (r % 17) + ",1," + (r % 100) / 100.0 + "\n");
+        out.close();
+        long count = DatabasePublisher.publishPredictions(connection, table, path.toString());
+        check(count == RECORDS, table + ": publishPredictions returned " + count + " instead of " + RECORDS);
+        check(count(reader, table) == RECORDS, table + ": the table does not have " + RECORDS + " rows");
+        checkSwapped(table);
+    }
+
+    /**
+     * Write random lists, with the characters escaped by COPY in the names, and return the records.
+     */
+    List<String[]> writeLists(String path, String format, boolean hasCategory, int nRecords) throws IOException {
+        Random random = new Random(nRecords);
+        List<String[]> records = new ArrayList<String[]>();
+        ListWriter writer = ListWriter.open(path, format, hasCategory);
+        try {
+            for (int r = 0; r < nRecords; r++) {
+                String[] record = new String[3 + random.nextInt(20)];
+                record[0] = "user" + r + (r % 10 == 0 ? "\\" : "") + (r % 15 == 0 ? "\t" : "");
+                record[1] = hasCategory ? "category" + random.nextInt(5) : null;
+                for (int k = 2; k < record.length; k++)
+                    record[k] = "item" + random.nextInt(1000) + (k % 7 == 0 ? ",\\N" : "");
+                records.add(record);
+                writer.writeRecord(record[0], record[1], Arrays.asList(record).subList(2, record.length));
+            }
+        } finally {
+            writer.close();
+        }
+        return records;
+    }
+
+    /**
+     * Check that a table has exactly the rows of the records.
+     */
+    void checkRows(String table, List<String[]> records, boolean hasCategory) throws SQLException {
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        for (String[] record : records) {
+            StringBuilder items = new StringBuilder();
+            for (int k = 2; k < record.length; k++)
+                items.append(k > 2 ? " " : "").append(record[k]);
+            String row = record[0] + "\n" + record[1] + "\n" + items;
+            expected.put(row, expected.containsKey(row) ? expected.get(row) + 1 : 1);
+        }
+        check(count(reader, table) == records.size(), table + ": the table does not have " + records.size() + " rows");
+
+        Statement statement = reader.createStatement();
+        try {
+            ResultSet rows = statement.executeQuery("SELECT user_id, " + (hasCategory ? "category" : "NULL") + ", items FROM " + DatabasePublisher.quote(table));
+            int mismatches = 0;
+            while (rows.next()) {
+                String row = rows.getString(1) + "\n" + rows.getString(2) + "\n" + rows.getString(3);
+                Integer n = expected.get(row);
+                if (n == null)
+                    mismatches++;
+                else if (n == 1)
+                    expected.remove(row);
+                else
+                    expected.put(row, n - 1);
+            }
+            check(mismatches == 0 && expected.isEmpty(), table + ": " + mismatches + " rows differ from the list file");
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Check that the staging table has been renamed to the table, together with its index.
+     */
+    void checkSwapped(String table) throws SQLException {
+        check(exists(table), table + ": the table does not exist");
+        check(!exists(table + DatabasePublisher.STAGING_SUFFIX), table + ": the staging table is left");
+        check(exists(table + "_user_id"), table + ": the index " + table + "_user_id does not exist");
+        check(connection.getAutoCommit(), table + ": the connection is left in a transaction");
+    }
+
+    void dropTables() throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet tables = statement.executeQuery("SELECT relname FROM pg_class WHERE relkind = 'r' AND relname LIKE '" + TABLE + "%'");
+            List<String> names = new ArrayList<String>();
+            while (tables.next())
+                names.add(tables.getString(1));
+            for (String name : names)
+                statement.executeUpdate("DROP TABLE IF EXISTS " + DatabasePublisher.quote(name));
+        } finally {
+            statement.close();
+        }
+    }
+
+    static long count(Connection connection, String table) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet result = statement.executeQuery("SELECT count(*) FROM " + DatabasePublisher.quote(table));
+            result.next();
+            return result.getLong(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * @return Whether a relation (a table or an index) of the name is visible to the reading session.
+     */
+    boolean exists(String name) throws SQLException {
+        PreparedStatement statement = reader.prepareStatement("SELECT count(*) FROM pg_class WHERE relname = ?");
+        try {
+            statement.setString(1, name);
+            ResultSet result = statement.executeQuery();
+            result.next();
+            return result.getLong(1) > 0;
+        } finally {
+            statement.close();
+        }
+    }
+
+    void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            System.out.println("FAILED: " + message);
+        }
+    }
+}
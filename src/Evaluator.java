@@ -1,5 +1,8 @@
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.util.*;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 
@@ -8,76 +11,382 @@ public class Evaluator {
     static String databaseName = "oneclickshoppingwall";
     static String account = "ntu";
     static String password = "ntu";
+    static int shardIndex = 0;
+    static int shardCount = 1;
+    static String[] userFeatures = new String[0];
+    static String[] itemFeatures = new String[0];
+    static int featureBuckets = 0;
+    static boolean trainInProcess = false;
+    static String candidateGeneratorName = "mixed";
+    static int candidateCount = 0;
+    static String itemSimilarityMetric = null;
+    static int neighborCount = 50;
+    static int itemSimilarityMaxRatings = 2;
+    static boolean useCheckpoints = false;
+    static int approxEpochs = 5;
+    static int listBudget = 0;
+    static String loadModelPath = null;
+    static String workerJvmOptions = null;
+    static final String PREDICTION_HEADER = "user_id,item_id,answer,prediction";
 
     /**
-     * Leave-one-out cross validation using input CSV file.
+     * Create an empty <tt>Transformation</tt> with the side feature settings.
+     *
+     * @return The created <tt>Transformation</tt>.
+     */
+    static Transformation newTransformation() {
+        Transformation tr = new Transformation();
+        tr.setUserFeatures(userFeatures);
+        tr.setItemFeatures(itemFeatures);
+        tr.setFeatureHashing(featureBuckets);
+        return tr;
+    }
+
+    /**
+     * Get the users processed by this process, ordered by their IDs.
+     * When this process is a shard worker (see <tt>ShardCoordinator</tt>), only the users of its shard are returned.
+     *
+     * @param  tr The loaded data.
+     * @return    The users to be processed.
+     */
+    public static List<String> getShardUsers(Transformation tr) {
+        List<String> users = new ArrayList<String>();
+        for (String user : tr.getUserList())
+            if (shardCount == 1 || ShardCoordinator.shardOf(user, shardCount) == shardIndex)
+                users.add(user);
+        return users;
+    }
+
+    /**
+     * Load rating data from an input CSV file.
+     *
+     * @param  inputPath   The input file path
+     * @param  userCol     The column number of users in the input CSV file.
+     * @param  itemCol     The column number of items in the input CSV file.
+     * @throws IOException if error occurs at file IO.
+     * @return             The loaded data.
+     */
+    public static Transformation loadCSV(String inputPath, int userCol, int itemCol) throws IOException {
+        return loadCSV(inputPath, userCol, itemCol, null);
+    }
+
+    /**
+     * Load rating data from an input CSV file, and the categories of the items from a category CSV file.
+     *
+     * @param  inputPath    The input file path
+     * @param  userCol      The column number of users in the input CSV file.
+     * @param  itemCol      The column number of items in the input CSV file.
+     * @param  categoryPath The category file path (item names and category names), or <tt>null</tt> not to use category.
+     * @throws IOException  if error occurs at file IO.
+     * @return              The loaded data.
+     */
+    public static Transformation loadCSV(String inputPath, int userCol, int itemCol, String categoryPath) throws IOException {
+        Transformation tr = newTransformation();
+        tr.readCSVFile(inputPath, userCol, itemCol, categoryPath);
+        return tr;
+    }
+
+    /**
+     * Load rating data (and category information if all of the category arguments are given) from the remote DB.
+     *
+     * @param  tableName         which table in the DB contains the rating data.
+     * @param  userField         The data field corresponding to user ID.
+     * @param  itemField         The data field corresponding to item ID.
+     * @param  categoryTableName The name of a table in the database like "master_category", or <tt>null</tt>.
+     * @param  itemTableName     The name of a table in the database like "product", or <tt>null</tt>.
+     * @param  categoryField     The field representing categories like "mcid", or <tt>null</tt>.
+     * @return                   The loaded data.
+     */
+    public static Transformation loadDatabase(String tableName, String userField, String itemField, String categoryTableName, String itemTableName, String categoryField) {
+        Transformation tr = newTransformation();
+        if (categoryTableName == null || itemTableName == null || categoryField == null)
+            tr.readDatabase(databaseURL, databaseName, account, password, tableName, userField, itemField); // don't use category
+        else
+            tr.readDatabase(databaseURL, databaseName, account, password, tableName, userField, itemField, categoryTableName, itemTableName, categoryField);
+        return tr;
+    }
+
+    /**
+     * Leave-one-out cross validation on already loaded data.
      * @see <a href="http://en.wikipedia.org/wiki/Cross-validation_%28statistics%29">"Cross-validation (statistics)" on Wikipedia</a>
      *
+     * @param  tr          The loaded data.
      * @param  libfmPath   The file path of the libFM executable.
-     * @param  inputPath   The input file path
      * @param  outputPath  The file path for saving the prediction results.
      * @param  nFactors    The number of latent factors used in libFM.
-     * @param  userCol     The column number of users in the input CSV file.
-     * @param  itemCol     The column number of items in the input CSV file.
      *
      * @throws IOException if error occurs at file IO.
      */
-    public static void loocv(String libfmPath, String inputPath, String outputPath, int nFactors, int userCol, int itemCol) throws IOException {
-        // load input CSV file and transform into libFM format
-        Transformation tr = new Transformation();
-        tr.readCSVFile(inputPath, userCol, itemCol);
-        List<String> lines = tr.getLibfmFormatLines();
-
-        // lines to be written to the output file
-        List<String> output = new ArrayList<String>();
-        output.add("user_id,item_id,answer,prediction");
+    public static void loocv(Transformation tr, String libfmPath, String outputPath, int nFactors) throws IOException {
+        Transformation.RatingTriples ratings = tr.getRatingTriples();
+        LibfmEncoder lines = new LibfmEncoder(tr);   // all of the lines, encoded only once
+        lines.addAll(ratings);
+        List<int[]> rows = trainInProcess ? getFeatureRows(tr, ratings) : null;
+
+        // the results are either recorded in a checkpoint or written to the output file directly
+        Checkpoint checkpoint = null;
+        BufferedWriter output = null;
+        if (useCheckpoints) {
+            checkpoint = new Checkpoint(Paths.get(outputPath + ".checkpoint"), Checkpoint.fingerprint(tr, "loocv", String.valueOf(nFactors), trainInProcess ? "sgd" : "libfm"));
+            if (checkpoint.getDoneCount() > 0)
+                System.out.println("Resuming from " + checkpoint.getDoneCount() + " finished folds...");
+        }
+        else {
+            output = Files.newBufferedWriter(Paths.get(outputPath), StandardCharsets.UTF_8);
+            output.write(PREDICTION_HEADER);
+            output.newLine();
+        }
 
         // start leave-one-out cross validation
         for (int testIdx = 0; testIdx < lines.size(); testIdx++) {
-            // parse the prediction target line
-            String testLine = lines.get(testIdx);
-            int rating = Integer.parseInt(testLine.split(" ")[0]);
-            int userIdx = Integer.parseInt(testLine.split(" ")[1].split(":")[0]); // user index in libFM
-            int itemIdx = Integer.parseInt(testLine.split(" ")[2].split(":")[0]); // item index in libFM
-            String user = tr.mapUserIDToName(userIdx); // user number in the input CSV file
-            String item = tr.mapItemIDToName(itemIdx); // item number in the input CSV file
+            if (checkpoint != null && checkpoint.isDone(String.valueOf(testIdx)))
+                continue;
+
+            // the prediction target
+            int rating = ratings.ratings[testIdx];
+            String user = tr.mapUserIDToName(ratings.users[testIdx]); // user number in the input CSV file
+            String item = tr.mapItemIDToName(ratings.items[testIdx]); // item number in the input CSV file
+            if (shardCount > 1 && ShardCoordinator.shardOf(user, shardCount) != shardIndex)
+                continue;   // left out by another shard
             System.out.print("\rNow testing: user=" + user + " item=" + item + "...");
 
-            // create a list of training instances and a list of testing instances
-            List<String> trainList = new ArrayList<String>();
-            List<String> testList = new ArrayList<String>();
-            testList.add(testLine);
-            for (int i = 0; i < lines.size(); i++) {
-                if (i == testIdx) continue;
-                trainList.add(lines.get(i));
+            // get the prediction result
+            double prediction = trainInProcess ? predictInProcess(tr, rows, ratings, testIdx, nFactors) : predictWithLibfm(tr, libfmPath, lines, testIdx, nFactors);
+            String result = user+","+item+","+rating+","+prediction;
+            if (checkpoint != null)
+                checkpoint.record(String.valueOf(testIdx), result);
+            else {
+                output.write(result);
+                output.newLine();
             }
+        }
+        if (checkpoint != null)
+            checkpoint.close();
+        else
+            output.close();
 
-            // initialize the temporary files
-            Path trainPath = Files.createTempFile(null, null);
-            Path testPath = Files.createTempFile(null, null);
-            Path predictionPath = Files.createTempFile(null, null);
-            Files.write(trainPath, trainList, StandardCharsets.UTF_8);
-            Files.write(testPath, testList, StandardCharsets.UTF_8);
+        // write the predictions results to a file
+        if (checkpoint != null) {
+            output = Files.newBufferedWriter(Paths.get(outputPath), StandardCharsets.UTF_8);
+            output.write(PREDICTION_HEADER);
+            output.newLine();
+            for (String[] entry : checkpoint.entries()) {
+                output.write(entry[1]);
+                output.newLine();
+            }
+            output.close();
+            checkpoint.delete();
+        }
+        System.out.println("\nRMSE = " + rmse(outputPath));
+    }
 
-            // run recommendation
-            Recommender model = new Recommender(libfmPath, nFactors, tr);
-            model.setTrainPath(trainPath.toString());
-            model.setTestPath(testPath.toString());
-            model.setPredictionPath(predictionPath.toString());
+    /**
+     * Train libFM on all of the lines but one, and predict that line.
+     *
+     * @param  tr          The loaded data.
+     * @param  libfmPath   The file path of the libFM executable.
+     * @param  lines       The encoded lines.
+     * @param  testIdx     The index of the line left out.
+     * @param  nFactors    The number of latent factors used in libFM.
+     * @throws IOException if error occurs at file IO.
+     * @return             The prediction.
+     */
+    static double predictWithLibfm(Transformation tr, String libfmPath, LibfmEncoder lines, int testIdx, int nFactors) throws IOException {
+        // initialize the temporary files
+        Path trainPath = Files.createTempFile(null, null);
+        Path testPath = Files.createTempFile(null, null);
+        Path predictionPath = Files.createTempFile(null, null);
+        lines.writeAllExcept(trainPath, testIdx);
+        lines.writeLine(testPath, testIdx);
+
+        // run recommendation
+        Recommender model = new Recommender(libfmPath, nFactors, tr);
+        model.setTrainPath(trainPath.toString());
+        model.setTestPath(testPath.toString());
+        model.setPredictionPath(predictionPath.toString());
+        double[] predictions = model.run();
+
+        // delete the temporary files
+        Files.delete(trainPath);
+        Files.delete(testPath);
+        Files.delete(predictionPath);
+        return predictions[0];
+    }
 
-            // get the prediction result
-            List<Double> predictions = model.run();
-            output.add(user+","+item+","+rating+","+predictions.get(0));
+    /**
+     * Train a model from scratch by <tt>SGDTrainer</tt> in this process on all of the ratings but one, and predict that rating.
+     *
+     * @param  tr          The loaded data.
+     * @param  rows        The feature IDs of the ratings (see <tt>getFeatureRows</tt>).
+     * @param  ratings     The ratings.
+     * @param  testIdx     The index of the rating left out.
+     * @param  nFactors    The number of latent factors.
+     * @throws IOException if fails to write the temporary model file.
+     * @return             The prediction.
+     */
+    static double predictInProcess(Transformation tr, List<int[]> rows, Transformation.RatingTriples ratings, int testIdx, int nFactors) throws IOException {
+        List<int[]> trainRows = new ArrayList<int[]>(rows);
+        trainRows.remove(testIdx);
+        double[] targets = new double[trainRows.size()];
+        for (int i = 0, j = 0; i < ratings.size(); i++)
+            if (i != testIdx)
+                targets[j++] = ratings.ratings[i];
+        Path modelPath = Files.createTempFile(null, null);
+        FactorModel model = new SGDTrainer().train(modelPath, tr.getNumFeatures(), nFactors, trainRows, targets);
+        double prediction = model.predict(rows.get(testIdx));
+        model.close();
+        Files.delete(modelPath);
+        return prediction;
+    }
 
-            // delete the temporary files
-            Files.delete(trainPath);
-            Files.delete(testPath);
-            Files.delete(predictionPath);
+    /**
+     * Get the feature IDs of every rating.
+     *
+     * @param  tr      The loaded data.
+     * @param  ratings The ratings.
+     * @return         The feature IDs of the ratings, in the same order.
+     */
+    static List<int[]> getFeatureRows(Transformation tr, Transformation.RatingTriples ratings) {
+        List<int[]> rows = new ArrayList<int[]>();
+        for (int i = 0; i < ratings.size(); i++)
+            rows.add(tr.getFeatureIDs(tr.mapUserIDToName(ratings.users[i]), tr.mapItemIDToName(ratings.items[i])));
+        return rows;
+    }
+
+    /**
+     * Approximate leave-one-out cross validation, which trains a model only once instead of once for every rating.
+     * A model is trained by <tt>SGDTrainer</tt> on all of the ratings. Then for every left-out rating, starting from the parameters of that model,
+     * the influence of the rating is undone by drawing new initial parameters for all of its features (its user, its item, the category
+     * and the side features), and refining only them by <tt>approxEpochs</tt> passes over the other ratings having any of these features,
+     * like <tt>Recommender.foldIn()</tt> does.
+     * (Taking back the SGD steps of the rating instead leaves the user and the item fitted to it, since most users have only a few ratings.)
+     * The parameters are restored after the prediction, so every fold starts from the same full model.
+     * The cost of a fold is the number of ratings sharing a feature with it (the ratings of its user and item, and of the whole category
+     * with categories), instead of a whole training. The global bias and the parameters of the other users and items have still seen
+     * the left-out rating, so the predictions remain a little optimistic.
+     *
+     * @param  tr          The loaded data.
+     * @param  outputPath  The file path for saving the prediction results, in the same format as <tt>loocv</tt>.
+     * @param  nFactors    The number of latent factors.
+     * @throws IOException if error occurs at file IO.
+     */
+    public static void approximateLoocv(Transformation tr, String outputPath, int nFactors) throws IOException {
+        Transformation.RatingTriples ratings = tr.getRatingTriples();
+        List<int[]> rows = getFeatureRows(tr, ratings);
+        double[] targets = new double[ratings.size()];
+        HashMap<Integer, List<Integer> > featureRows = new HashMap<Integer, List<Integer> >();   // the rows of each feature
+        for (int i = 0; i < ratings.size(); i++) {
+            int[] features = rows.get(i);
+            targets[i] = ratings.ratings[i];
+            for (int k = 0; k < features.length; k++) {
+                if (!featureRows.containsKey(features[k]))
+                    featureRows.put(features[k], new ArrayList<Integer>());
+                featureRows.get(features[k]).add(i);
+            }
         }
 
-        // write the predictions results to a file
-        Files.write(FileSystems.getDefault().getPath(outputPath), output, StandardCharsets.UTF_8);
-        System.out.println("\nRMSE = " + rmse(outputPath));
+        // the full model
+        SGDTrainer trainer = new SGDTrainer();
+        Path modelPath = Files.createTempFile(null, null);
+        FactorModel model = trainer.train(modelPath, tr.getNumFeatures(), nFactors, rows, targets);
+
+        BufferedWriter output = Files.newBufferedWriter(Paths.get(outputPath), StandardCharsets.UTF_8);
+        output.write(PREDICTION_HEADER);
+        output.newLine();
+        for (int testIdx = 0; testIdx < ratings.size(); testIdx++) {
+            int[] testRow = rows.get(testIdx);
+            String user = tr.mapUserIDToName(testRow[0]);
+            String item = tr.mapItemIDToName(testRow[1]);
+            if (shardCount > 1 && ShardCoordinator.shardOf(user, shardCount) != shardIndex)
+                continue;   // left out by another shard
+            System.out.print("\rNow testing: user=" + user + " item=" + item + "...");
+
+            // the other ratings having any feature of the left-out one
+            BitSet trainable = new BitSet();
+            BitSet added = new BitSet();
+            List<int[]> foldRows = new ArrayList<int[]>();
+            List<Double> foldTargets = new ArrayList<Double>();
+            float[][] savedFactors = new float[testRow.length][nFactors];
+            float[] savedWeights = new float[testRow.length];
+            for (int k = 0; k < testRow.length; k++) {
+                trainable.set(testRow[k]);
+                savedWeights[k] = model.getWeight(testRow[k]);
+                model.getFactors(testRow[k], savedFactors[k]);
+                for (int i : featureRows.get(testRow[k])) {
+                    if (i == testIdx || added.get(i))
+                        continue;   // left out, or already added by another feature
+                    added.set(i);
+                    foldRows.add(rows.get(i));
+                    foldTargets.add(targets[i]);
+                }
+            }
+            double[] foldTargetArray = new double[foldTargets.size()];
+            for (int i = 0; i < foldTargetArray.length; i++)
+                foldTargetArray[i] = foldTargets.get(i);
+
+            trainer.setSeed(testIdx);   // the same for every fold whether the users are sharded or not
+            for (int k = 0; k < testRow.length; k++)
+                trainer.initialize(model, testRow[k], testRow[k] + 1);
+            trainer.foldIn(model, foldRows, foldTargetArray, trainable, approxEpochs);
+            output.write(user+","+item+","+ratings.ratings[testIdx]+","+model.predict(testRow));
+            output.newLine();
+
+            // back to the full model
+            for (int k = 0; k < testRow.length; k++) {
+                model.setWeight(testRow[k], savedWeights[k]);
+                model.setFactors(testRow[k], savedFactors[k]);
+            }
+        }
+        output.close();
+        model.close();
+        Files.delete(modelPath);
+        System.out.println("\nRMSE (approximate) = " + rmse(outputPath));
+    }
+
+    /**
+     * Print how close the predictions of the approximate leave-one-out cross validation are to the exact ones.
+     *
+     * @param  exactPath   The output file of <tt>loocv</tt>.
+     * @param  approxPath  The output file of <tt>approximateLoocv</tt>.
+     * @throws IOException if fails to read the files.
+     */
+    public static void compareLoocv(String exactPath, String approxPath) throws IOException {
+        HashMap<String, Double> exactPredictions = new HashMap<String, Double>();   // keyed by "user,item"
+        List<String> lines = Files.readAllLines(Paths.get(exactPath), StandardCharsets.UTF_8);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            exactPredictions.put(fields[0] + "," + fields[1], Double.parseDouble(fields[3]));
+        }
+        double s = 0.0;
+        int n = 0;
+        lines = Files.readAllLines(Paths.get(approxPath), StandardCharsets.UTF_8);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            Double exact = exactPredictions.get(fields[0] + "," + fields[1]);
+            if (exact == null)
+                continue;
+            s += Math.pow(exact - Double.parseDouble(fields[3]), 2);
+            n++;
+        }
+        System.out.println("RMSE (exact) = " + rmse(exactPath) + ", RMSE (approximate) = " + rmse(approxPath)
+                + ", RMS difference of the predictions = " + Math.sqrt(s / n) + " (" + n + " ratings)");
+    }
+
+    /**
+     * Leave-one-out cross validation using input CSV file.
+     * @see <a href="http://en.wikipedia.org/wiki/Cross-validation_%28statistics%29">"Cross-validation (statistics)" on Wikipedia</a>
+     *
+     * @param  libfmPath   The file path of the libFM executable.
+     * @param  inputPath   The input file path
+     * @param  outputPath  The file path for saving the prediction results.
+     * @param  nFactors    The number of latent factors used in libFM.
+     * @param  userCol     The column number of users in the input CSV file.
+     * @param  itemCol     The column number of items in the input CSV file.
+     *
+     * @throws IOException if error occurs at file IO.
+     */
+    public static void loocv(String libfmPath, String inputPath, String outputPath, int nFactors, int userCol, int itemCol) throws IOException {
+        loocv(loadCSV(inputPath, userCol, itemCol), libfmPath, outputPath, nFactors);
     }
 
     /**
@@ -97,64 +406,7 @@ public class Evaluator {
      * @throws IOException if error occurs at file IO.
      */
     public static void loocv_db(String libfmPath, String tableName, String outputPath, int nFactors, String userField, String itemField, String categoryTableName, String itemTableName, String categoryField) throws IOException {
-        // load input CSV file and transform into libFM format
-        Transformation tr = new Transformation();
-        if (categoryTableName == null || itemTableName == null || categoryField == null)
-            tr.readDatabase(databaseURL, databaseName, account, password, tableName, userField, itemField); // don't use category
-        else
-            tr.readDatabase(databaseURL, databaseName, account, password, tableName, userField, itemField, categoryTableName, itemTableName, categoryField);
-        List<String> lines = tr.getLibfmFormatLines();
-
-        // lines to be written to the output file
-        List<String> output = new ArrayList<String>();
-        output.add("user_id,item_id,answer,prediction");
-
-        // start leave-one-out cross validation
-        for (int testIdx = 0; testIdx < lines.size(); testIdx++) {
-            // parse the prediction target line
-            String testLine = lines.get(testIdx);
-            int rating = Integer.parseInt(testLine.split(" ")[0]);
-            int userIdx = Integer.parseInt(testLine.split(" ")[1].split(":")[0]); // user index in libFM
-            int itemIdx = Integer.parseInt(testLine.split(" ")[2].split(":")[0]); // item index in libFM
-            String user = tr.mapUserIDToName(userIdx); // user number in the input CSV file
-            String item = tr.mapItemIDToName(itemIdx); // item number in the input CSV file
-            System.out.print("\rNow testing: user=" + user + " item=" + item + "...");
-
-            // create a list of training instances and a list of testing instances
-            List<String> trainList = new ArrayList<String>();
-            List<String> testList = new ArrayList<String>();
-            testList.add(testLine);
-            for (int i = 0; i < lines.size(); i++) {
-                if (i == testIdx) continue;
-                trainList.add(lines.get(i));
-            }
-
-            // initialize the temporary files
-            Path trainPath = Files.createTempFile(null, null);
-            Path testPath = Files.createTempFile(null, null);
-            Path predictionPath = Files.createTempFile(null, null);
-            Files.write(trainPath, trainList, StandardCharsets.UTF_8);
-            Files.write(testPath, testList, StandardCharsets.UTF_8);
-
-            // run recommendation
-            Recommender model = new Recommender(libfmPath, nFactors, tr);
-            model.setTrainPath(trainPath.toString());
-            model.setTestPath(testPath.toString());
-            model.setPredictionPath(predictionPath.toString());
-
-            // get the prediction result
-            List<Double> predictions = model.run();
-            output.add(user+","+item+","+rating+","+predictions.get(0));
-
-            // delete the temporary files
-            Files.delete(trainPath);
-            Files.delete(testPath);
-            Files.delete(predictionPath);
-        }
-
-        // write the predictions results to a file
-        Files.write(FileSystems.getDefault().getPath(outputPath), output, StandardCharsets.UTF_8);
-        System.out.println("\nRMSE = " + rmse(outputPath));
+        loocv(loadDatabase(tableName, userField, itemField, categoryTableName, itemTableName, categoryField), libfmPath, outputPath, nFactors);
     }
 
     /**
@@ -194,6 +446,119 @@ public class Evaluator {
         return Math.sqrt(s / lines.size());
     }
 
+    /**
+     * Recommend a top-N list of items for each user with a shared model.
+     *
+     * @param  model       The recommender built on the loaded data.
+     * @param  writer      Where to stream the recommendation lists.
+     * @param  N           The number of items to be recommended to this user.
+     *
+     * @throws IOException if error occurs at file IO.
+     */
+    public static void recommendTopNForUsers(Recommender model, ListWriter writer, int N) throws IOException {
+        if (model.getModel() != null) {
+            System.out.println("Generating the top-" + N + " recommendation lists with the model...");
+            model.recommendInBatch(getShardUsers(model.tr), null, N, writer);
+            return;
+        }
+        for (String user : getShardUsers(model.tr)) {
+            if (writer.isDone(user, null))
+                continue;
+            System.out.print("\rGenerating the top-" + N + " recommendation list for user=" + user + "...");
+            writer.writeRecord(user, null, model.getRecommendationList(user, N));
+        }
+        System.out.println();
+    }
+
+    /**
+     * Recommend a list of items for each user with a shared model.
+     *
+     * @param  model       The recommender built on the loaded data.
+     * @param  writer      Where to stream the recommendation lists.
+     *
+     * @throws IOException if error occurs at file IO.
+     */
+    public static void recommendForUsers(Recommender model, ListWriter writer) throws IOException {
+        if (model.getModel() != null) {
+            System.out.println("Generating the recommendation lists with the model...");
+            model.recommendInBatch(getShardUsers(model.tr), null, 0, writer);
+            return;
+        }
+        for (String user : getShardUsers(model.tr)) {
+            if (writer.isDone(user, null))
+                continue;
+            System.out.print("\rGenerating the recommendation list for user=" + user + "...");
+            model.writeRecommendationList(user, null, writer);
+        }
+        System.out.println();
+    }
+
+    /**
+     * Recommend a list of items for each category and each user with a shared model.
+     *
+     * @param  model       The recommender built on the loaded data (with category information).
+     * @param  writer      Where to stream the recommendation lists (with categories).
+     * @throws IOException if error occurs at file IO.
+     */
+    public static void recommendForUsersByCategory(Recommender model, ListWriter writer) throws IOException {
+        Transformation tr = model.tr;
+        List<String> users = getShardUsers(tr);
+        List<String> categories = tr.getCategoryList();
+        long startTime = System.nanoTime();
+        if (model.getModel() != null) {
+            System.out.println("Generating the recommendation lists of the categories with the model...");
+            model.recommendInBatch(users, categories, 0, writer);
+        }
+        else for (String user : users) {
+            for (String category : categories) {
+                if (writer.isDone(user, category))
+                    continue;
+                System.out.print("\rGenerating the recommendation list for user=" + user + " category=" + category + "...");
+                model.writeRecommendationList(user, category, writer);
+            }
+        }
+        System.out.println();
+        System.out.println("Execution time: " + 1.0 * (System.nanoTime() - startTime) / 1e9);
+        System.out.println("Execution time per user: " + 1.0 * (System.nanoTime() - startTime) / 1e9 / users.size());
+    }
+
+    /**
+     * Recommend with a shared model, streaming one kind of list into a newly opened output file.
+     *
+     * @param  model       The recommender built on the loaded data.
+     * @param  stage       <tt>"toplist"</tt>, <tt>"list"</tt> or <tt>"category"</tt>.
+     * @param  outputPath  The file path for saving the recommendation lists.
+     * @param  format      The output format accepted by <tt>ListWriter.open</tt>.
+     * @param  N           The number of items in the top-N lists.
+     *
+     * @throws IOException if error occurs at file IO.
+     */
+    public static void recommend(Recommender model, String stage, String outputPath, String format, int N) throws IOException {
+        ListWriter writer = null;
+        Checkpoint.CheckpointedListWriter checkpointedWriter = null;
+        if (useCheckpoints) {
+            List<String> settings = new ArrayList<String>(Arrays.asList(stage, String.valueOf(model.nFactors), String.valueOf(N)));
+            settings.addAll(getRecommenderOptions());
+            writer = checkpointedWriter = new Checkpoint.CheckpointedListWriter(outputPath, format, stage.equals("category"),
+                    Checkpoint.fingerprint(model.tr, settings.toArray(new String[0])));
+        }
+        else
+            writer = ListWriter.open(outputPath, format, stage.equals("category"));
+        try {
+            if (stage.equals("toplist"))
+                recommendTopNForUsers(model, writer, N);
+            else if (stage.equals("list"))
+                recommendForUsers(model, writer);
+            else
+                recommendForUsersByCategory(model, writer);
+            if (checkpointedWriter != null)
+                checkpointedWriter.finish();
+        } finally {
+            writer.close();
+        }
+        System.out.println("Output the recommendation lists to " + outputPath + "...");
+    }
+
     /**
      * Recommend a top-N list of items for each user using data from CSV file.
      *
@@ -208,33 +573,12 @@ public class Evaluator {
      * @throws IOException if error occurs at file IO.
      */
     public static void recommendTopNForUsers(String libfmPath, String inputPath, String outputPath, int nFactors, int userCol, int itemCol, int N) throws IOException {
-        // load input CSV file and transform into libFM format
-        Transformation tr = new Transformation();
-        tr.readCSVFile(inputPath, userCol, itemCol);
-
-        // initialize the Recommender
-        Recommender model = new Recommender(libfmPath, nFactors, tr);
-
-        // lines to be written to the output file
-        List<String> output = new ArrayList<String>();
-        output.add("user_id,items");
-
-        // get recommendation list for each user
-        List<String> recommendationList = null;
-        String line = null;
-        for (String user : tr.getUserSet()) {
-            System.out.print("\rGenerating the top-" + N + " recommendation list for user=" + user + "...");
-            recommendationList = model.getRecommendationList(user, N);
-            if (recommendationList.isEmpty())
-                continue;
-            line = "" + user + ",";
-            for (String item : recommendationList)
-                line += item + " ";
-            output.add(line.trim());
+        Recommender model = new Recommender(libfmPath, nFactors, loadCSV(inputPath, userCol, itemCol));
+        try {
+            recommend(model, "toplist", outputPath, "text", N);
+        } finally {
+            model.close();
         }
-
-        System.out.println("\nOutput the recommendation lists...");
-        Files.write(FileSystems.getDefault().getPath(outputPath), output, StandardCharsets.UTF_8);
     }
 
     /**
@@ -250,33 +594,12 @@ public class Evaluator {
      * @throws IOException if error occurs at file IO.
      */
     public static void recommendForUsers(String libfmPath, String inputPath, String outputPath, int nFactors, int userCol, int itemCol) throws IOException {
-        // load input CSV file and transform into libFM format
-        Transformation tr = new Transformation();
-        tr.readCSVFile(inputPath, userCol, itemCol);
-
-        // initialize the Recommender
-        Recommender model = new Recommender(libfmPath, nFactors, tr);
-
-        // lines to be written to the output file
-        List<String> output = new ArrayList<String>();
-        output.add("user_id,items");
-
-        // get recommendation list for each user
-        List<String> recommendationList = null;
-        String line = null;
-        for (String user : tr.getUserSet()) {
-            System.out.print("\rGenerating the recommendation list for user=" + user + "...");
-            recommendationList = model.getRecommendationList(user);
-            if (recommendationList.isEmpty())
-                continue;
-            line = "" + user + ",";
-            for (String item : recommendationList)
-                line += item + " ";
-            output.add(line.trim());
+        Recommender model = new Recommender(libfmPath, nFactors, loadCSV(inputPath, userCol, itemCol));
+        try {
+            recommend(model, "list", outputPath, "text", 0);
+        } finally {
+            model.close();
         }
-
-        System.out.println("\nOutput the recommendation lists...");
-        Files.write(FileSystems.getDefault().getPath(outputPath), output, StandardCharsets.UTF_8);
     }
 
     /**
@@ -293,33 +616,12 @@ public class Evaluator {
      * @throws IOException if error occurs at file IO.
      */
     public static void recommendTopNForUsers_db(String libfmPath, String tableName, String outputPath, int nFactors, String userField, String itemField, int N) throws IOException {
-        // load input CSV file and transform into libFM format
-        Transformation tr = new Transformation();
-        tr.readDatabase(databaseURL, databaseName, account, password, tableName, userField, itemField);
-
-        // initialize the Recommender
-        Recommender model = new Recommender(libfmPath, nFactors, tr);
-
-        // lines to be written to the output file
-        List<String> output = new ArrayList<String>();
-        output.add("user_id,items");
-
-        // get recommendation list for each user
-        List<String> recommendationList = null;
-        String line = null;
-        for (String user : tr.getUserSet()) {
-            System.out.print("\rGenerating the top-" + N + " recommendation list for user=" + user + "...");
-            recommendationList = model.getRecommendationList(user, N);
-            if (recommendationList.isEmpty())
-                continue;
-            line = "" + user + ",";
-            for (String item : recommendationList)
-                line += item + " ";
-            output.add(line.trim());
+        Recommender model = new Recommender(libfmPath, nFactors, loadDatabase(tableName, userField, itemField, null, null, null));
+        try {
+            recommend(model, "toplist", outputPath, "text", N);
+        } finally {
+            model.close();
         }
-
-        System.out.println("\nOutput the recommendation lists...");
-        Files.write(FileSystems.getDefault().getPath(outputPath), output, StandardCharsets.UTF_8);
     }
 
     /**
@@ -335,33 +637,12 @@ public class Evaluator {
      * @throws IOException if error occurs at file IO.
      */
     public static void recommendForUsers_db(String libfmPath, String tableName, String outputPath, int nFactors, String userField, String itemField) throws IOException {
-        // load input CSV file and transform into libFM format
-        Transformation tr = new Transformation();
-        tr.readDatabase(databaseURL, databaseName, account, password, tableName, userField, itemField);
-
-        // initialize the Recommender
-        Recommender model = new Recommender(libfmPath, nFactors, tr);
-
-        // lines to be written to the output file
-        List<String> output = new ArrayList<String>();
-        output.add("user_id,items");
-
-        // get recommendation list for each user
-        List<String> recommendationList = null;
-        String line = null;
-        for (String user : tr.getUserSet()) {
-            System.out.print("\rGenerating the recommendation list for user=" + user + "...");
-            recommendationList = model.getRecommendationList(user);
-            if (recommendationList.isEmpty())
-                continue;
-            line = "" + user + ",";
-            for (String item : recommendationList)
-                line += item + " ";
-            output.add(line.trim());
+        Recommender model = new Recommender(libfmPath, nFactors, loadDatabase(tableName, userField, itemField, null, null, null));
+        try {
+            recommend(model, "list", outputPath, "text", 0);
+        } finally {
+            model.close();
         }
-
-        System.out.println("\nOutput the recommendation lists...");
-        Files.write(FileSystems.getDefault().getPath(outputPath), output, StandardCharsets.UTF_8);
     }
 
     /**
@@ -379,39 +660,213 @@ public class Evaluator {
      * @throws IOException       if error occurs at file IO.
      */
     public static void recommendForUsers_db_category(String libfmPath, String tableName, String outputPath, int nFactors, String userField, String itemField, String categoryTableName, String itemTableName, String categoryField) throws IOException {
-        // load input CSV file and transform into libFM format
-        Transformation tr = new Transformation();
-        tr.readDatabase(databaseURL, databaseName, account, password, tableName, userField, itemField, categoryTableName, itemTableName, categoryField);
+        Recommender model = new Recommender(libfmPath, nFactors, loadDatabase(tableName, userField, itemField, categoryTableName, itemTableName, categoryField));
+        try {
+            recommend(model, "category", outputPath, "text", 0);
+        } finally {
+            model.close();
+        }
+    }
 
-        // initialize the Recommender
+    /**
+     * Run the selected stages on data which has been loaded only once.
+     * All recommendation stages share one <tt>Recommender</tt>, so the libFM training file is also built only once.
+     * Stage names are <tt>"loocv"</tt> (written to <tt>outputPath</tt>), <tt>"approx"</tt> (written to <tt>outputPath.approx</tt>, see <tt>approximateLoocv</tt>), <tt>"toplist"</tt> (written to <tt>outputPath.toplist</tt>),
+     * <tt>"list"</tt> (written to <tt>outputPath.list</tt>), <tt>"category"</tt> (written to <tt>outputPath.category</tt>)
+     * and <tt>"model"</tt> (trains libFM, or <tt>SGDTrainer</tt> in this process, once and saves the model to the memory-mapped file <tt>outputPath.model</tt>).
+     *
+     * @param  tr          The loaded data.
+     * @param  libfmPath   The file path of the libFM executable.
+     * @param  outputPath  The file path for saving the prediction results.
+     * @param  nFactors    The number of latent factors used in libFM.
+     * @param  stages      The names of the stages to run.
+     * @param  N           The number of items in the top-N lists.
+     * @param  format      The format of the recommendation lists accepted by <tt>ListWriter.open</tt>.
+     *
+     * @throws IOException if error occurs at file IO.
+     */
+    public static void runPipeline(Transformation tr, String libfmPath, String outputPath, int nFactors, Set<String> stages, int N, String format) throws IOException {
+        if (stages.contains("loocv"))
+            loocv(tr, libfmPath, outputPath, nFactors);
+        if (stages.contains("approx"))
+            approximateLoocv(tr, outputPath + ".approx", nFactors);
+        if (stages.contains("loocv") && stages.contains("approx") && shardCount == 1)
+            compareLoocv(outputPath, outputPath + ".approx");
+
+        Recommender model = newRecommender(tr, libfmPath, nFactors);
+        try {
+            if (loadModelPath != null)
+                model.loadModel(loadModelPath);     // trained by the coordinator of the workers
+            else if (stages.contains("model") && trainInProcess)
+                model.trainInProcess(outputPath + ".model");
+            else if (stages.contains("model"))
+                model.train(outputPath + ".model");
+            for (String stage : new String[] {"toplist", "list", "category"})
+                if (stages.contains(stage))
+                    recommend(model, stage, outputPath + "." + stage, format, N);
+        } finally {
+            model.close();
+        }
+    }
+
+    /**
+     * Create a <tt>Recommender</tt> with the recommender settings (candidates, item-item similarities and the memory budget of the lists).
+     *
+     * @param  tr        The loaded data.
+     * @param  libfmPath The file path of the libFM executable.
+     * @param  nFactors  The number of latent factors used in libFM.
+     * @return           The created <tt>Recommender</tt>.
+     */
+    static Recommender newRecommender(Transformation tr, String libfmPath, int nFactors) {
         Recommender model = new Recommender(libfmPath, nFactors, tr);
+        // a single similarity engine for the fallback and the candidates, with the metric and the neighbors of the options
+        ItemSimilarity similarity = null;
+        if (itemSimilarityMetric != null || (candidateCount > 0 && CandidateGenerator.usesItemSimilarity(candidateGeneratorName)))
+            similarity = new ItemSimilarity(tr, itemSimilarityMetric != null ? itemSimilarityMetric : "cosine", neighborCount);
+        if (candidateCount > 0)
+            model.setCandidateGenerator(CandidateGenerator.create(candidateGeneratorName, tr, similarity), candidateCount);
+        if (itemSimilarityMetric != null)
+            model.setItemSimilarity(similarity, itemSimilarityMaxRatings);
+        if (listBudget > 0)
+            model.setListBudget(listBudget);
+        return model;
+    }
 
-        // lines to be written to the output file
-        List<String> output = new ArrayList<String>();
-        output.add("user_id,category,items");
+    /**
+     * Run the selected stages in <tt>shardCount</tt> worker processes, and merge their outputs into the same files a single run produces.
+     * The data is written to a snapshot file, so that all the workers load exactly the same data.
+     * The model of the stage "model" is trained once here, and the workers load the same model file.
+     *
+     * @param  tr          The loaded data.
+     * @param  libfmPath   The file path of the libFM executable.
+     * @param  outputPath  The file path for saving the prediction results.
+     * @param  nFactors    The number of latent factors used in libFM.
+     * @param  stages      The names of the stages to run.
+     * @param  N           The number of items in the top-N lists.
+     * @param  format      The format of the recommendation lists accepted by <tt>ListWriter.open</tt>.
+     * @param  workerCount The number of worker processes.
+     * @param  launcher    A command prefix used to start the workers, or <tt>null</tt> to start them on the local machine.
+     *
+     * @throws IOException if error occurs at file IO or in a worker.
+     */
+    public static void runShardedPipeline(Transformation tr, String libfmPath, String outputPath, int nFactors, Set<String> stages, int N, String format, int workerCount, String launcher) throws IOException {
+        Set<String> workerStages = new LinkedHashSet<String>(stages);
+        if (workerStages.remove("model")) {
+            Recommender model = new Recommender(libfmPath, nFactors, tr);
+            try {
+                if (trainInProcess)
+                    model.trainInProcess(outputPath + ".model");
+                else
+                    model.train(outputPath + ".model");
+            } finally {
+                model.close();
+            }
+        }
+        if (workerStages.isEmpty())
+            return;
+
+        String snapshotPath = outputPath + ".snapshot";
+        tr.writeSnapshot(snapshotPath);
+        List<String> workerArgs = new ArrayList<String>(Arrays.asList(libfmPath, snapshotPath, outputPath, String.valueOf(nFactors), "-", "-", "-snapshot",
+                "-stages", String.join(",", workerStages), "-topn", String.valueOf(N), "-format", "text"));
+        workerArgs.addAll(getRecommenderOptions());
+        if (stages.contains("model"))
+            workerArgs.addAll(Arrays.asList("-loadmodel", outputPath + ".model"));
+        try {
+            System.out.println("Running " + workerCount + " workers...");
+            ShardCoordinator.runWorkers(workerArgs, ShardCoordinator.getWorkerJvmOptions(workerJvmOptions), workerCount, launcher, outputPath);
+        } finally {
+            Files.deleteIfExists(Paths.get(snapshotPath));
+        }
+        mergeShards(tr, outputPath, workerStages, format, workerCount);
+        ShardCoordinator.deleteWorkerFiles(outputPath, workerCount);
+    }
 
-        // get recommendation list for each user
-        List<String> recommendationList = null;
-        String line = null;
-        long startTime = System.nanoTime();
-        for (String user : tr.getUserSet()) {
-            for (String category : tr.getCategorySet()) {
-                System.out.print("\rGenerating the recommendation list for user=" + user + " category=" + category + "...");
-                recommendationList = model.getRecommendationList(user, category);
-                if (recommendationList.isEmpty())
+    /**
+     * Get the command line options of the recommender settings, to pass them on to the workers.
+     *
+     * @return The options.
+     */
+    static List<String> getRecommenderOptions() {
+        List<String> options = new ArrayList<String>();
+        if (trainInProcess)
+            options.addAll(Arrays.asList("-trainer", "sgd"));
+        if (useCheckpoints)
+            options.add("-checkpoint");
+        if (approxEpochs != 5)
+            options.addAll(Arrays.asList("-approxepochs", String.valueOf(approxEpochs)));
+        if (candidateCount > 0)
+            options.addAll(Arrays.asList("-candidates", String.valueOf(candidateCount), "-candidategen", candidateGeneratorName));
+        if (itemSimilarityMetric != null)
+            options.addAll(Arrays.asList("-itemsim", itemSimilarityMetric, "-neighbors", String.valueOf(neighborCount), "-itemsimmax", String.valueOf(itemSimilarityMaxRatings)));
+        if (listBudget > 0)
+            options.addAll(Arrays.asList("-listbudget", String.valueOf(listBudget)));
+        return options;
+    }
+
+    /**
+     * Merge the outputs of the shard workers of the selected stages.
+     *
+     * @param  tr          The loaded data.
+     * @param  outputPath  The file path for saving the prediction results.
+     * @param  stages      The names of the stages which have been run.
+     * @param  format      The format of the recommendation lists accepted by <tt>ListWriter.open</tt>.
+     * @param  workerCount The number of worker processes.
+     *
+     * @throws IOException if error occurs at file IO.
+     */
+    public static void mergeShards(Transformation tr, String outputPath, Set<String> stages, String format, int workerCount) throws IOException {
+        System.out.println("Merging the outputs of " + workerCount + " workers...");
+        if (stages.contains("loocv")) {
+            ShardCoordinator.mergePredictions(tr, outputPath, workerCount);
+            System.out.println("RMSE = " + rmse(outputPath));
+        }
+        if (stages.contains("approx")) {
+            ShardCoordinator.mergePredictions(tr, outputPath, ".approx", workerCount);
+            System.out.println("RMSE (approximate) = " + rmse(outputPath + ".approx"));
+        }
+        if (stages.contains("loocv") && stages.contains("approx"))
+            compareLoocv(outputPath, outputPath + ".approx");
+        for (String stage : new String[] {"toplist", "list", "category"})
+            if (stages.contains(stage))
+                ShardCoordinator.mergeLists(tr, outputPath, stage, workerCount, format);
+    }
+
+    /**
+     * Publish the outputs of the selected stages to the database (see <tt>DatabasePublisher</tt>): the predictions of loocv and approx
+     * to the tables TABLE_loocv and TABLE_approx, and the lists of toplist, list and category to the tables TABLE_toplist etc.
+     * Each table is replaced at once, so the storefront never reads a half-published table.
+     *
+     * @param  outputPath  The file path of the prediction results.
+     * @param  table       The prefix of the table names.
+     * @param  stages      The names of the stages which have been run.
+     * @param  format      The format of the recommendation lists accepted by <tt>ListWriter.open</tt>.
+     *
+     * @throws IOException if error occurs at file IO or in the database.
+     */
+    public static void publish(String outputPath, String table, Set<String> stages, String format) throws IOException {
+        Connection connection = DatabasePublisher.connect(databaseURL, databaseName, account, password);
+        try {
+            for (String stage : new String[] {"loocv", "approx", "toplist", "list", "category"}) {
+                if (!stages.contains(stage))
                     continue;
-                line = "" + user + "," + category + ",";
-                for (String item : recommendationList)
-                    line += item + " ";
-                output.add(line.trim());
+                long startTime = System.nanoTime();
+                long count = 0;
+                if (stage.equals("loocv"))
+                    count = DatabasePublisher.publishPredictions(connection, table + "_" + stage, outputPath);
+                else if (stage.equals("approx"))
+                    count = DatabasePublisher.publishPredictions(connection, table + "_" + stage, outputPath + ".approx");
+                else
+                    count = DatabasePublisher.publishLists(connection, table + "_" + stage, outputPath + "." + stage, format);
+                System.out.println("Published " + count + " rows to the table " + table + "_" + stage + " (" + 1.0 * (System.nanoTime() - startTime) / 1e9 + "s)");
+            }
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                throw new IOException(ex);
             }
         }
-        System.out.println();
-        System.out.println("Execution time: " + 1.0 * (System.nanoTime() - startTime) / 1e9);
-        System.out.println("Execution time per user: " + 1.0 * (System.nanoTime() - startTime) / 1e9 / tr.getUserSet().size());
-
-        System.out.println("Output the recommendation lists...");
-        Files.write(FileSystems.getDefault().getPath(outputPath), output, StandardCharsets.UTF_8);
     }
 
     public static void main(String[] args) {
@@ -419,27 +874,138 @@ public class Evaluator {
             System.out.println("\nERROR: number of argument is wrong. Please see the README file.\n\n");
             System.exit(-1);
         }
+
+        // positional arguments; several inputs (and outputs) can be separated by commas
+        String libfmPath = args[0];
+        String[] inputs = args[1].split(",");
+        String[] outputs = args[2].split(",");
+        int nFactors = Integer.parseInt(args[3]);
+        String source = args[6];
+        String categoryTableName = null;
+        String itemTableName = null;
+        String categoryField = null;
+        String categoryPath = null;
+        int argIdx = 7;
+        if (source.equals("-db") && args.length >= 10 && !args[7].startsWith("-")) {
+            categoryTableName = args[7];
+            itemTableName = args[8];
+            categoryField = args[9];
+            argIdx = 10;
+        }
+        else if (source.equals("-csv") && args.length >= 8 && !args[7].startsWith("-")) {
+            categoryPath = args[7];
+            argIdx = 8;
+        }
+        if (inputs.length != outputs.length) {
+            System.out.println("\nERROR: the numbers of inputs and outputs are different. Please see the README file.\n\n");
+            System.exit(-1);
+        }
+
+        // optional arguments
+        Set<String> stages = new LinkedHashSet<String>();
+        int N = 5;
+        String format = "text";
+        int workerCount = 1;
+        int mergeCount = 0;
+        String launcher = null;
+        String[] publishTables = null;
+        for (; argIdx < args.length; argIdx++) {
+            if (args[argIdx].equals("-stages") && argIdx + 1 < args.length)
+                stages.addAll(Arrays.asList(args[++argIdx].split(",")));
+            else if (args[argIdx].equals("-topn") && argIdx + 1 < args.length)
+                N = Integer.parseInt(args[++argIdx]);
+            else if (args[argIdx].equals("-format") && argIdx + 1 < args.length)
+                format = args[++argIdx];
+            else if (args[argIdx].equals("-workers") && argIdx + 1 < args.length)
+                workerCount = Integer.parseInt(args[++argIdx]);
+            else if (args[argIdx].equals("-launcher") && argIdx + 1 < args.length)
+                launcher = args[++argIdx];
+            else if (args[argIdx].equals("-publish") && argIdx + 1 < args.length)
+                publishTables = args[++argIdx].split(",");
+            else if (args[argIdx].equals("-workerjvm") && argIdx + 1 < args.length)
+                workerJvmOptions = args[++argIdx];
+            else if (args[argIdx].equals("-loadmodel") && argIdx + 1 < args.length)
+                loadModelPath = args[++argIdx];
+            else if (args[argIdx].equals("-merge") && argIdx + 1 < args.length)
+                mergeCount = Integer.parseInt(args[++argIdx]);
+            else if (args[argIdx].equals("-userfeatures") && argIdx + 1 < args.length)
+                userFeatures = args[++argIdx].split(",");
+            else if (args[argIdx].equals("-itemfeatures") && argIdx + 1 < args.length)
+                itemFeatures = args[++argIdx].split(",");
+            else if (args[argIdx].equals("-candidates") && argIdx + 1 < args.length)
+                candidateCount = Integer.parseInt(args[++argIdx]);
+            else if (args[argIdx].equals("-candidategen") && argIdx + 1 < args.length)
+                candidateGeneratorName = args[++argIdx];
+            else if (args[argIdx].equals("-itemsim") && argIdx + 1 < args.length)
+                itemSimilarityMetric = args[++argIdx];
+            else if (args[argIdx].equals("-neighbors") && argIdx + 1 < args.length)
+                neighborCount = Integer.parseInt(args[++argIdx]);
+            else if (args[argIdx].equals("-itemsimmax") && argIdx + 1 < args.length)
+                itemSimilarityMaxRatings = Integer.parseInt(args[++argIdx]);
+            else if (args[argIdx].equals("-approxepochs") && argIdx + 1 < args.length)
+                approxEpochs = Integer.parseInt(args[++argIdx]);
+            else if (args[argIdx].equals("-listbudget") && argIdx + 1 < args.length)
+                listBudget = Integer.parseInt(args[++argIdx]);
+            else if (args[argIdx].equals("-checkpoint"))
+                useCheckpoints = true;
+            else if (args[argIdx].equals("-trainer") && argIdx + 1 < args.length)
+                trainInProcess = args[++argIdx].equals("sgd");
+            else if (args[argIdx].equals("-hash") && argIdx + 1 < args.length)
+                featureBuckets = Integer.parseInt(args[++argIdx]);
+            else if (args[argIdx].equals("-shard") && argIdx + 1 < args.length) {
+                String[] shard = args[++argIdx].split("/");
+                shardIndex = Integer.parseInt(shard[0]);
+                shardCount = Integer.parseInt(shard[1]);
+            }
+            else {
+                System.out.println("\nERROR: unknown argument " + args[argIdx] + ". Please see the README file.\n\n");
+                System.exit(-1);
+            }
+        }
+        if (publishTables != null && publishTables.length != inputs.length) {
+            System.out.println("\nERROR: the numbers of inputs and tables to publish are different. Please see the README file.\n\n");
+            System.exit(-1);
+        }
+
         try {
-            if (args[6].equals("-db")) {
-                if (args.length == 7) {
-                    // no category
-                    loocv_db(args[0], args[1], args[2], Integer.parseInt(args[3]), args[4], args[5]);
-                    recommendTopNForUsers_db(args[0], args[1], args[2]+".toplist", Integer.parseInt(args[3]), args[4], args[5], 5);
-                    recommendForUsers_db(args[0], args[1], args[2]+".list", Integer.parseInt(args[3]), args[4], args[5]);
+            for (int i = 0; i < inputs.length; i++) {
+                Transformation tr = null;
+                if (source.equals("-db"))
+                    tr = loadDatabase(inputs[i], args[4], args[5], categoryTableName, itemTableName, categoryField);
+                else if (source.equals("-snapshot")) {
+                    tr = new Transformation();
+                    tr.readSnapshot(inputs[i]);
                 }
-                else {
-                    // use category
-                    loocv_db(args[0], args[1], args[2], Integer.parseInt(args[3]), args[4], args[5], args[7], args[8], args[9]);
-                    recommendForUsers_db_category(args[0], args[1], args[2]+".category", Integer.parseInt(args[3]), args[4], args[5], args[7], args[8], args[9]);
+                else
+                    tr = loadCSV(inputs[i], Integer.parseInt(args[4]), Integer.parseInt(args[5]), categoryPath);
+
+                Set<String> inputStages = new LinkedHashSet<String>(stages);
+                if (inputStages.isEmpty()) {
+                    // the default stages
+                    inputStages.add("loocv");
+                    if (tr.getCategorySet().isEmpty()) {
+                        inputStages.add("toplist");
+                        inputStages.add("list");
+                    }
+                    else
+                        inputStages.add("category");
                 }
-            }
-            else {
-                loocv(args[0], args[1], args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]));
-                recommendTopNForUsers(args[0], args[1], args[2]+".toplist", Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]), 5);
-                recommendForUsers(args[0], args[1], args[2]+".list", Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+
+                if (mergeCount > 0)
+                    mergeShards(tr, outputs[i], inputStages, format, mergeCount);                 // merges the outputs of workers started elsewhere
+                else if (workerCount > 1)
+                    runShardedPipeline(tr, libfmPath, outputs[i], nFactors, inputStages, N, format, workerCount, launcher);
+                else if (shardCount > 1)
+                    runPipeline(tr, libfmPath, ShardCoordinator.shardPath(outputs[i], shardIndex), nFactors, inputStages, N, format);  // a worker
+                else
+                    runPipeline(tr, libfmPath, outputs[i], nFactors, inputStages, N, format);
+
+                if (publishTables != null && shardCount == 1)
+                    publish(outputs[i], publishTables[i], inputStages, format);                    // the workers leave it to the coordinator
             }
         } catch (Exception e) {
             e.printStackTrace();
+            System.exit(1);
         }
     }
 }
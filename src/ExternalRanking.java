@@ -0,0 +1,314 @@
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/**
+ * Ranks the items of a single recommendation list by their scores in a fixed amount of memory, however many items there are.
+ * The scored items are collected in a buffer of half the <tt>budget</tt>, since sorting the buffer takes as much memory again.
+ * Whenever the buffer is full, it is sorted and written to a temporary file as a sorted run. The ranked items are then read by merging the runs. At most <tt>MERGE_FAN_IN</tt> runs are merged at once,
+ * so when there are more runs, they are first merged group by group into longer runs, pass by pass.
+ * The read and write buffers of a merge share <tt>budget</tt> items of memory, so the memory and the open files do not grow with the number of items.
+ * The runs left by <tt>finish()</tt> are only opened by the first call of <tt>next()</tt> and closed once they are read, so that rankings
+ * finished ahead of their reading, and read one after another, do not keep their files open meanwhile.
+ * The items are ranked by their scores from the highest, and items with the same score by their IDs from the lowest,
+ * exactly like a stable sort of items added in the order of their IDs.
+ *
+ * Usage:
+ * <pre>
+ * ExternalRanking ranking = new ExternalRanking(budget);
+ * for (...)
+ *     ranking.add(itemID, score);
+ * while (ranking.next())
+ *     process(ranking.getItem());
+ * ranking.close();
+ * </pre>
+ */
+public class ExternalRanking implements Closeable {
+    static final int RECORD_SIZE = 12;   // a score and an item
+    static final int MERGE_FAN_IN = 32;  // the runs merged at once
+
+    int budget;
+    int capacity;   // the items of the buffer, half the budget
+    double[] scores;
+    int[] items;
+    int size = 0;
+    int runCount = 0;
+    List<Path> runPaths = new ArrayList<Path>();
+    List<Path> mergedPaths = new ArrayList<Path>();   // the runs being written by a merge pass
+
+    // the merge, started by finish() or the first call of next(); without any run, the buffer is read instead
+    boolean merging = false;
+    List<DataInputStream> runs;
+    PriorityQueue<Head> heads;
+    int bufferPosition = 0;
+    int item;
+
+    /**
+     * @param budget The number of items kept in memory, including the buffer of the sort (at least 1).
+     */
+    public ExternalRanking(int budget) {
+        this.budget = Math.max(1, budget);
+        this.capacity = Math.max(1, this.budget / 2);
+        this.scores = new double[Math.min(capacity, 1024)];
+        this.items = new int[scores.length];
+    }
+
+    /**
+     * Add a scored item.
+     *
+     * @param  item        The item ID.
+     * @param  score       The score of the item.
+     * @throws IOException if fails to write a sorted run.
+     */
+    public void add(int item, double score) throws IOException {
+        if (merging)
+            throw new IllegalStateException("The items are being read");
+        if (size == scores.length) {
+            if (size == capacity)
+                spill();
+            else {
+                scores = Arrays.copyOf(scores, (int) Math.min(capacity, 2L * size));
+                items = Arrays.copyOf(items, scores.length);
+            }
+        }
+        scores[size] = score;
+        items[size] = item;
+        size++;
+    }
+
+    /**
+     * @return The number of sorted runs written to temporary files so far.
+     */
+    public int getRunCount() { return runCount; }
+
+    /**
+     * Stop adding items, and sort those in the buffer, or merge the runs until they can be merged at once.
+     * This is done by the first call of <tt>next()</tt> otherwise. The remaining runs are not opened yet.
+     *
+     * @throws IOException if fails to merge the sorted runs.
+     */
+    public void finish() throws IOException {
+        if (!merging)
+            startMerge();
+    }
+
+    /**
+     * Move to the next item in the ranking.
+     *
+     * @throws IOException if fails to read a sorted run.
+     * @return             <tt>false</tt> if there is no more item.
+     */
+    public boolean next() throws IOException {
+        finish();
+        if (runPaths.isEmpty()) {
+            if (bufferPosition == size)
+                return false;
+            item = items[bufferPosition++];
+            return true;
+        }
+        if (heads == null)
+            openRuns(runPaths, bufferSize(runPaths.size()));
+        Head head = heads.poll();
+        if (head == null) {
+            closeRuns();
+            return false;
+        }
+        item = head.item;
+        if (head.advance())
+            heads.add(head);
+        return true;
+    }
+
+    /**
+     * @return The item ID at the current position.
+     */
+    public int getItem() { return item; }
+
+    /**
+     * Delete the temporary files.
+     *
+     * @throws IOException if fails to delete a file.
+     */
+    public void close() throws IOException {
+        closeRuns();
+        for (Path path : runPaths)
+            Files.deleteIfExists(path);
+        for (Path path : mergedPaths)
+            Files.deleteIfExists(path);
+        runPaths.clear();
+        mergedPaths.clear();
+    }
+
+    private void startMerge() throws IOException {
+        merging = true;
+        if (runPaths.isEmpty()) {
+            sort(scores, items, size);
+            return;
+        }
+
+        // the rest of the buffer becomes a run as well, so the buffer can be given to the merge
+        if (size > 0)
+            spill();
+        scores = null;
+        items = null;
+        while (runPaths.size() > MERGE_FAN_IN)
+            mergePass();
+        heads = null;
+    }
+
+    /**
+     * Merge the runs group by group, <tt>MERGE_FAN_IN</tt> runs into one.
+     */
+    private void mergePass() throws IOException {
+        for (int from = 0; from < runPaths.size(); from += MERGE_FAN_IN) {
+            List<Path> group = runPaths.subList(from, Math.min(runPaths.size(), from + MERGE_FAN_IN));
+            Path path = Files.createTempFile(null, null);
+            mergedPaths.add(path);
+            int bufferSize = bufferSize(group.size() + 1);
+            openRuns(group, bufferSize);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), bufferSize));
+            try {
+                Head head = null;
+                while ((head = heads.poll()) != null) {
+                    out.writeDouble(head.score);
+                    out.writeInt(head.item);
+                    if (head.advance())
+                        heads.add(head);
+                }
+            } finally {
+                out.close();
+                closeRuns();
+            }
+            for (Path run : group)
+                Files.delete(run);
+        }
+        runPaths = mergedPaths;
+        mergedPaths = new ArrayList<Path>();
+    }
+
+    /**
+     * @return The size of each of the <tt>nBuffers</tt> buffers sharing the budget, in whole records.
+     */
+    private int bufferSize(int nBuffers) {
+        long records = Math.max(1, (long) budget / nBuffers);
+        return (int) Math.min(ListWriter.BUFFER_SIZE / RECORD_SIZE, records) * RECORD_SIZE;
+    }
+
+    private void openRuns(List<Path> paths, int bufferSize) throws IOException {
+        runs = new ArrayList<DataInputStream>();
+        heads = new PriorityQueue<Head>();
+        for (Path path : paths) {
+            DataInputStream run = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), bufferSize));
+            runs.add(run);
+            Head head = new Head(run, Files.size(path) / RECORD_SIZE);
+            if (head.advance())
+                heads.add(head);
+        }
+    }
+
+    private void closeRuns() throws IOException {
+        if (runs != null) {
+            for (DataInputStream run : runs)
+                run.close();
+            runs = null;
+        }
+    }
+
+    /**
+     * Sort the buffer and write it to a new temporary file.
+     */
+    private void spill() throws IOException {
+        sort(scores, items, size);
+        Path path = Files.createTempFile(null, null);
+        runPaths.add(path);
+        runCount++;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), bufferSize(1)));
+        try {
+            for (int i = 0; i < size; i++) {
+                out.writeDouble(scores[i]);
+                out.writeInt(items[i]);
+            }
+        } finally {
+            out.close();
+        }
+        size = 0;
+    }
+
+    /**
+     * The order of the ranking: the higher score first, and the lower item ID first for the same score.
+     */
+    static int compare(double score1, int item1, double score2, int item2) {
+        int c = Double.compare(score2, score1);
+        return c != 0 ? c : Integer.compare(item1, item2);
+    }
+
+    /**
+     * Sort the first <tt>n</tt> scored items in the order of the ranking by a bottom-up merge sort.
+     */
+    static void sort(double[] scores, int[] items, int n) {
+        double[] scoreBuffer = new double[n];
+        int[] itemBuffer = new int[n];
+        double[] fromScores = scores, toScores = scoreBuffer;
+        int[] fromItems = items, toItems = itemBuffer;
+        for (int width = 1; width < n; width *= 2) {
+            for (int left = 0; left < n; left += 2 * width) {
+                int middle = Math.min(left + width, n);
+                int right = Math.min(left + 2 * width, n);
+                int i = left, j = middle, k = left;
+                while (i < middle && j < right) {
+                    if (compare(fromScores[j], fromItems[j], fromScores[i], fromItems[i]) < 0) {
+                        toScores[k] = fromScores[j];
+                        toItems[k++] = fromItems[j++];
+                    }
+                    else {
+                        toScores[k] = fromScores[i];
+                        toItems[k++] = fromItems[i++];
+                    }
+                }
+                System.arraycopy(fromScores, i, toScores, k, middle - i);
+                System.arraycopy(fromItems, i, toItems, k, middle - i);
+                k += middle - i;
+                System.arraycopy(fromScores, j, toScores, k, right - j);
+                System.arraycopy(fromItems, j, toItems, k, right - j);
+            }
+            double[] swapScores = fromScores;
+            fromScores = toScores;
+            toScores = swapScores;
+            int[] swapItems = fromItems;
+            fromItems = toItems;
+            toItems = swapItems;
+        }
+        if (fromScores != scores) {
+            System.arraycopy(fromScores, 0, scores, 0, n);
+            System.arraycopy(fromItems, 0, items, 0, n);
+        }
+    }
+
+    /**
+     * The next item of a sorted run.
+     */
+    static class Head implements Comparable<Head> {
+        DataInputStream run;
+        long remaining;
+        double score;
+        int item;
+
+        Head(DataInputStream run, long count) {
+            this.run = run;
+            this.remaining = count;
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0)
+                return false;
+            remaining--;
+            score = run.readDouble();
+            item = run.readInt();
+            return true;
+        }
+
+        public int compareTo(Head other) {
+            return compare(score, item, other.score, other.item);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The parameters of a factorization machine (the global bias, one weight and <tt>nFactors</tt> latent factors per feature)
+ * stored off-heap in a memory-mapped file.
+ *
+ * The file has a flat little-endian float layout:
+ * <pre>
+ * header  : int magic ("MSLF"), int version, int nFeatures, int nFactors, float w0, int capacity, 8 bytes of padding
+ * weights : capacity floats, the weight w[j] of every feature
+ * factors : capacity * nFactors floats, the factors v[j][0..nFactors-1] of feature j stored together
+ * </pre>
+ * Only the first nFeatures rows are in use; the spare rows up to the capacity let a writable model grow without copying.
+ * Since nothing is read until it is used, opening a model costs only page faults,
+ * and several processes opening the same file read-only share its pages through the OS page cache.
+ * The file is mapped in segments, so models larger than 2GB are supported.
+ *
+ * A model is not thread-safe for writing, but read-only models can be read by many threads at the same time.
+ */
+public class FactorModel implements Closeable {
+    /** The magic number at the beginning of a model file ("MSLF"). */
+    public static final int MAGIC = 0x4D534C46;
+    /** The version of the model file layout. */
+    public static final int VERSION = 1;
+    /** The size of the header in bytes. */
+    public static final int HEADER_SIZE = 32;
+
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    Path path;
+    boolean writable;
+    int nFeatures;
+    int nFactors;
+    int capacity;
+    FileChannel channel;
+    MappedByteBuffer header;
+    FloatBuffer[] weightSegments;
+    FloatBuffer[] factorSegments;
+    List<MappedByteBuffer> mappedSegments = new ArrayList<MappedByteBuffer>();   // the buffers under the float views
+    int weightsPerSegment;
+    int rowsPerSegment;
+
+    private FactorModel(Path path, boolean writable) {
+        this.path = path;
+        this.writable = writable;
+    }
+
+    /**
+     * Create a new model file with all the parameters set to 0, and open it for writing.
+     *
+     * @param  path        The model file path.
+     * @param  nFeatures   The number of features.
+     * @param  nFactors    The number of latent factors of each feature.
+     * @throws IOException if the file cannot be created.
+     * @return             The created model.
+     */
+    public static FactorModel create(Path path, int nFeatures, int nFactors) throws IOException {
+        return create(path, nFeatures, nFactors, nFeatures);
+    }
+
+    /**
+     * Create a new model file with all the parameters set to 0 and room for <tt>capacity</tt> features, and open it for writing.
+     *
+     * @param  path        The model file path.
+     * @param  nFeatures   The number of features.
+     * @param  nFactors    The number of latent factors of each feature.
+     * @param  capacity    The number of features the file has room for (at least <tt>nFeatures</tt>).
+     * @throws IOException if the file cannot be created.
+     * @return             The created model.
+     */
+    public static FactorModel create(Path path, int nFeatures, int nFactors, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(nFeatures).putInt(nFactors).putFloat(0.0f).putInt(Math.max(nFeatures, capacity));
+        header.rewind();
+        channel.write(header, 0);
+        long size = fileSize(Math.max(nFeatures, capacity), nFactors);
+        if (channel.size() < size)
+            channel.write(ByteBuffer.allocate(1), size - 1);   // extends the file (filled with zeros)
+        channel.close();
+        return openWritable(path);
+    }
+
+    /**
+     * Open a model file read-only. The file can be shared by other processes.
+     *
+     * @param  path        The model file path.
+     * @throws IOException if the file cannot be opened or is not a model file.
+     * @return             The opened model.
+     */
+    public static FactorModel open(Path path) throws IOException {
+        FactorModel model = new FactorModel(path, false);
+        model.map();
+        return model;
+    }
+
+    /**
+     * Open a model file for reading and writing.
+     *
+     * @param  path        The model file path.
+     * @throws IOException if the file cannot be opened or is not a model file.
+     * @return             The opened model.
+     */
+    public static FactorModel openWritable(Path path) throws IOException {
+        FactorModel model = new FactorModel(path, true);
+        model.map();
+        return model;
+    }
+
+    /**
+     * Convert a model saved by libFM (with the option <tt>-save_model</tt>) into a model file.
+     * The libFM model is a text file with the sections "#global bias W0", "#unary interactions Wj" (one weight per line)
+     * and "#pairwise interactions Vj,f" (the factors of one feature per line, separated by spaces).
+     * libFM only knows the features up to the largest one in its input files, so the features after them are added with all the parameters set to 0.
+     *
+     * @param  libfmModelPath The path of the model saved by libFM.
+     * @param  path           The path of the model file to be created.
+     * @param  nFeatures      The number of features of the data the model was trained on.
+     * @throws IOException    if fails to read or write a file, or if the libFM model has no features, no factors or more than <tt>nFeatures</tt> features.
+     * @return                The created model, opened for writing.
+     */
+    public static FactorModel fromLibfmModel(Path libfmModelPath, Path path, int nFeatures) throws IOException {
+        // the first pass counts the features and the factors
+        int nModelFeatures = 0;
+        int nFactors = 0;
+        String section = "";
+        BufferedReader reader = Files.newBufferedReader(libfmModelPath, StandardCharsets.UTF_8);
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.startsWith("#"))
+                section = line;
+            else if (!line.isEmpty() && section.startsWith("#unary"))
+                nModelFeatures++;
+            else if (!line.isEmpty() && section.startsWith("#pairwise") && nFactors == 0)
+                nFactors = line.split(" ").length;
+        }
+        reader.close();
+        if (nModelFeatures == 0 || nFactors == 0)
+            throw new IOException("The libFM model " + libfmModelPath + " has " + nModelFeatures + " features and " + nFactors + " factors");
+        if (nModelFeatures > nFeatures)
+            throw new IOException("The libFM model " + libfmModelPath + " has " + nModelFeatures + " features, more than the " + nFeatures + " features of the data");
+
+        // the second pass copies the parameters
+        FactorModel model = create(path, nFeatures, nFactors);
+        int feature = 0;
+        reader = Files.newBufferedReader(libfmModelPath, StandardCharsets.UTF_8);
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.startsWith("#")) {
+                section = line;
+                feature = 0;
+            }
+            else if (line.isEmpty())
+                continue;
+            else if (section.startsWith("#global"))
+                model.setBias(Float.parseFloat(line));
+            else if (section.startsWith("#unary"))
+                model.setWeight(feature++, Float.parseFloat(line));
+            else if (section.startsWith("#pairwise")) {
+                String[] values = line.split(" ");
+                for (int f = 0; f < nFactors; f++)
+                    model.setFactor(feature, f, Float.parseFloat(values[f]));
+                feature++;
+            }
+        }
+        reader.close();
+        return model;
+    }
+
+    /** @return The number of features. */
+    public int getNumFeatures() { return nFeatures; }
+
+    /** @return The number of latent factors of each feature. */
+    public int getNumFactors() { return nFactors; }
+
+    /** @return The number of features the model file has room for. */
+    public int getCapacity() { return capacity; }
+
+    /** @return The model file path. */
+    public Path getPath() { return path; }
+
+    /**
+     * Move the model file to another path, replacing the file there, while the model stays open and mapped.
+     *
+     * @param  target      The new path of the model file.
+     * @throws IOException if the file cannot be moved; the model is then still at its old path.
+     */
+    public void moveTo(Path target) throws IOException {
+        Files.move(path, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        path = target;
+    }
+
+    /** @return The global bias w0. */
+    public float getBias() { return header.getFloat(16); }
+
+    /** @param value The new global bias w0. */
+    public void setBias(float value) { header.putFloat(16, value); }
+
+    /**
+     * @param  feature The feature ID.
+     * @return         The weight of the feature.
+     */
+    public float getWeight(int feature) {
+        return weightSegments[feature / weightsPerSegment].get(feature % weightsPerSegment);
+    }
+
+    /**
+     * @param feature The feature ID.
+     * @param value   The new weight of the feature.
+     */
+    public void setWeight(int feature, float value) {
+        weightSegments[feature / weightsPerSegment].put(feature % weightsPerSegment, value);
+    }
+
+    /**
+     * @param  feature The feature ID.
+     * @param  f       The factor index.
+     * @return         The <tt>f</tt>-th factor of the feature.
+     */
+    public float getFactor(int feature, int f) {
+        return factorSegments[feature / rowsPerSegment].get((feature % rowsPerSegment) * nFactors + f);
+    }
+
+    /**
+     * @param feature The feature ID.
+     * @param f       The factor index.
+     * @param value   The new <tt>f</tt>-th factor of the feature.
+     */
+    public void setFactor(int feature, int f, float value) {
+        factorSegments[feature / rowsPerSegment].put((feature % rowsPerSegment) * nFactors + f, value);
+    }
+
+    /**
+     * Copy the factors of a feature into <tt>dest</tt>.
+     *
+     * @param feature The feature ID.
+     * @param dest    An array of at least <tt>nFactors</tt> elements.
+     */
+    public void getFactors(int feature, float[] dest) {
+        FloatBuffer segment = factorSegments[feature / rowsPerSegment].duplicate();
+        segment.position((feature % rowsPerSegment) * nFactors);
+        segment.get(dest, 0, nFactors);
+    }
+
+    /**
+     * Copy <tt>src</tt> into the factors of a feature.
+     *
+     * @param feature The feature ID.
+     * @param src     An array of at least <tt>nFactors</tt> elements.
+     */
+    public void setFactors(int feature, float[] src) {
+        FloatBuffer segment = factorSegments[feature / rowsPerSegment].duplicate();
+        segment.position((feature % rowsPerSegment) * nFactors);
+        segment.put(src, 0, nFactors);
+    }
+
+    /**
+     * Predict the rating of an instance whose features all have the value 1 (like a line "-1 3:1 17:1 42:1" in libFM format).
+     *
+     * @param  features The IDs of the features of the instance.
+     * @throws IllegalArgumentException if a feature is outside of the model, e.g. a user or an item added after the model was trained.
+     * @return          The predicted rating.
+     */
+    public double predict(int[] features) {
+        double result = getBias();
+        for (int j : features) {
+            checkFeature(j);
+            result += getWeight(j);
+        }
+
+        // the pairwise interactions in O(nFactors * |features|)
+        for (int f = 0; f < nFactors; f++) {
+            double sum = 0.0;
+            double sumOfSquares = 0.0;
+            for (int j : features) {
+                double v = getFactor(j, f);
+                sum += v;
+                sumOfSquares += v * v;
+            }
+            result += 0.5 * (sum * sum - sumOfSquares);
+        }
+        return result;
+    }
+
+    /**
+     * Check that a feature has parameters in the model, instead of scoring an instance without it.
+     *
+     * @param  feature The feature ID.
+     * @throws IllegalArgumentException if the feature is outside of the model.
+     */
+    public void checkFeature(int feature) {
+        if (feature < 0 || feature >= nFeatures)
+            throw new IllegalArgumentException("The feature " + feature + " is not in the model of " + nFeatures
+                    + " features; fold the new ratings in or retrain the model first");
+    }
+
+    /**
+     * Grow a writable model to <tt>newNFeatures</tt> features. The parameters of the new features are 0.
+     * If the file has no room for them, it is rewritten with twice the capacity (so growing one feature at a time costs amortized O(1)),
+     * and atomically replaces the old file.
+     *
+     * @param  newNFeatures The new number of features.
+     * @throws IOException  if fails to rewrite the model file.
+     */
+    public void grow(int newNFeatures) throws IOException {
+        if (!writable)
+            throw new IOException("The model is read-only: " + path);
+        if (newNFeatures <= nFeatures)
+            return;
+        if (newNFeatures > capacity) {
+            Path newPath = Paths.get(path.toString() + ".grow");
+            FactorModel grown = create(newPath, nFeatures, nFactors, (int) Math.min(Integer.MAX_VALUE, Math.max((long) newNFeatures, 2L * capacity)));
+            grown.setBias(getBias());
+            float[] factors = new float[nFactors];
+            for (int j = 0; j < nFeatures; j++) {
+                grown.setWeight(j, getWeight(j));
+                getFactors(j, factors);
+                grown.setFactors(j, factors);
+            }
+            grown.close();
+            close();
+            try {
+                Files.move(newPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                // the grown file, or the old one if it could not be replaced
+                mappedSegments.clear();
+                map();
+                Files.deleteIfExists(newPath);
+            }
+        }
+        nFeatures = newNFeatures;
+        header.putInt(8, nFeatures);
+    }
+
+    /**
+     * Write the changes of a writable model to the disk.
+     */
+    public void force() {
+        if (!writable)
+            return;
+        header.force();
+        for (MappedByteBuffer segment : mappedSegments)
+            segment.force();
+    }
+
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /**
+     * @return The size of a model file.
+     */
+    static long fileSize(int capacity, int nFactors) {
+        return HEADER_SIZE + 4L * capacity + 4L * capacity * nFactors;
+    }
+
+    private void map() throws IOException {
+        if (writable)
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        else
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+
+        header = channel.map(mode, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.size() < HEADER_SIZE || header.getInt(0) != MAGIC)
+            throw new IOException("Not a model file: " + path);
+        if (header.getInt(4) != VERSION)
+            throw new IOException("Unsupported model file version: " + path);
+        nFeatures = header.getInt(8);
+        nFactors = header.getInt(12);
+        capacity = header.getInt(20);
+        if (channel.size() < fileSize(capacity, nFactors))
+            throw new IOException("Truncated model file: " + path);
+
+        weightsPerSegment = (int) (SEGMENT_SIZE / 4);
+        weightSegments = mapSegments(mode, HEADER_SIZE, capacity, weightsPerSegment, 1);
+        rowsPerSegment = (int) Math.max(1, SEGMENT_SIZE / (4L * Math.max(1, nFactors)));
+        factorSegments = mapSegments(mode, HEADER_SIZE + 4L * capacity, capacity, rowsPerSegment, nFactors);
+    }
+
+    /**
+     * Map <tt>nRows</tt> rows of <tt>rowLength</tt> floats starting from <tt>offset</tt>, <tt>rowsPerSegment</tt> rows per segment.
+     */
+    private FloatBuffer[] mapSegments(FileChannel.MapMode mode, long offset, int nRows, int rowsPerSegment, int rowLength) throws IOException {
+        int nSegments = (int) ((nRows + (long) rowsPerSegment - 1) / rowsPerSegment);
+        FloatBuffer[] segments = new FloatBuffer[nSegments];
+        for (int i = 0; i < nSegments; i++) {
+            long rows = Math.min(rowsPerSegment, nRows - (long) i * rowsPerSegment);
+            MappedByteBuffer buffer = channel.map(mode, offset + 4L * rowLength * i * rowsPerSegment, 4L * rowLength * rows);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            mappedSegments.add(buffer);
+            segments[i] = buffer.asFloatBuffer();
+        }
+        return segments;
+    }
+}
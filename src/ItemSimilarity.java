@@ -0,0 +1,233 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An item-item similarity engine built from the co-occurrence of items in the ratings:
+ * two items co-occur once for every user who has rated both of them.
+ * The counts are normalized by cosine (<tt>c / sqrt(n1 * n2)</tt>) or Jaccard (<tt>c / (n1 + n2 - c)</tt>),
+ * where <tt>n1</tt> and <tt>n2</tt> are the numbers of users who have rated each item,
+ * and only the <tt>K</tt> most similar neighbors of every item are kept.
+ *
+ * Recommending to a user then only sums up the neighbors of the user's items, which takes microseconds,
+ * so it is used for users with only a few ratings, where a factorization machine is expensive and not much better.
+ * The engine is a snapshot of the data when it is built (see <tt>Transformation.view()</tt>): it answers from the items and the ratings
+ * of that version, so items and ratings added later are not taken into account until it is rebuilt.
+ */
+public class ItemSimilarity {
+    Transformation tr;
+    List<String> items;                          // the items by their local indices
+    HashMap<String, Integer> itemIndexMap = new HashMap<String, Integer>();
+    int[] itemCategories;                        // the category ID of each item, or -1
+    int[][] neighbors;                           // the neighbors of each item, the most similar first
+    float[][] similarities;                      // the similarities to the neighbors
+
+    /**
+     * Build the engine with all available processors.
+     *
+     * @param tr     The data.
+     * @param metric <tt>"cosine"</tt> or <tt>"jaccard"</tt>.
+     * @param K      The number of neighbors kept for each item.
+     */
+    public ItemSimilarity(Transformation tr, String metric, int K) {
+        this(tr, metric, K, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Build the engine.
+     *
+     * @param tr       The data.
+     * @param metric   <tt>"cosine"</tt> or <tt>"jaccard"</tt>.
+     * @param K        The number of neighbors kept for each item.
+     * @param nThreads The number of threads computing the similarities.
+     */
+    public ItemSimilarity(Transformation tr, String metric, final int K, int nThreads) {
+        if (!metric.equals("cosine") && !metric.equals("jaccard"))
+            throw new IllegalArgumentException("Unknown similarity metric: " + metric);
+        final boolean cosine = metric.equals("cosine");
+        tr = tr.view();
+        this.tr = tr;
+        this.items = tr.getItemList();
+        final int nItems = items.size();
+        this.itemCategories = new int[nItems];
+        for (int i = 0; i < nItems; i++) {
+            itemIndexMap.put(items.get(i), i);
+            Integer category = tr.getCategory(items.get(i));
+            itemCategories[i] = category == null ? -1 : category;
+        }
+
+        // sparse rating matrix in both directions
+        List<String> users = tr.getUserList();
+        final int[][] userItems = new int[users.size()][];
+        final int[] itemUserCounts = new int[nItems];
+        for (int u = 0; u < users.size(); u++) {
+            Set<String> rated = tr.getRatedItems(users.get(u));
+            userItems[u] = new int[rated.size()];
+            int k = 0;
+            for (String item : rated) {
+                userItems[u][k++] = itemIndexMap.get(item);
+                itemUserCounts[itemIndexMap.get(item)]++;
+            }
+        }
+        final int[][] itemUsers = new int[nItems][];
+        for (int i = 0; i < nItems; i++)
+            itemUsers[i] = new int[itemUserCounts[i]];
+        int[] filled = new int[nItems];
+        for (int u = 0; u < userItems.length; u++)
+            for (int i : userItems[u])
+                itemUsers[i][filled[i]++] = u;
+
+        // the neighbors of each item, computed in parallel over blocks of items
+        this.neighbors = new int[nItems][];
+        this.similarities = new float[nItems][];
+        final int blockSize = Math.max(1, (nItems + nThreads * 4 - 1) / (nThreads * 4));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int start = 0; start < nItems; start += blockSize) {
+            final int from = start;
+            final int to = Math.min(nItems, start + blockSize);
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    int[] counts = new int[nItems];      // co-occurrence counts of the current item, reused
+                    int[] touched = new int[nItems];     // the items with non-zero counts
+                    for (int i = from; i < to; i++) {
+                        int nTouched = 0;
+                        for (int u : itemUsers[i]) {
+                            for (int j : userItems[u]) {
+                                if (j == i)
+                                    continue;
+                                if (counts[j] == 0)
+                                    touched[nTouched++] = j;
+                                counts[j]++;
+                            }
+                        }
+                        float[] scores = new float[nTouched];
+                        for (int t = 0; t < nTouched; t++) {
+                            int j = touched[t];
+                            double c = counts[j];
+                            double ni = itemUserCounts[i];
+                            double nj = itemUserCounts[j];
+                            scores[t] = (float) (cosine ? c / Math.sqrt(ni * nj) : c / (ni + nj - c));
+                            counts[j] = 0;
+                        }
+                        keepTopK(i, touched, scores, nTouched, K);
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while computing the item similarities", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Failed to compute the item similarities", ex.getCause());
+        }
+    }
+
+    /**
+     * Get the most similar items of an item.
+     *
+     * @param  item The item name.
+     * @return      The neighbors, the most similar first (empty if the item is unknown).
+     */
+    public List<String> getNeighbors(String item) {
+        List<String> result = new ArrayList<String>();
+        Integer i = itemIndexMap.get(item);
+        if (i != null)
+            for (int j : neighbors[i])
+                result.add(items.get(j));
+        return result;
+    }
+
+    /**
+     * Get the similarity between an item and one of its kept neighbors.
+     *
+     * @param  item1 The item name.
+     * @param  item2 The neighbor name.
+     * @return       The similarity, or 0 if <tt>item2</tt> is not a kept neighbor of <tt>item1</tt>.
+     */
+    public double getSimilarity(String item1, String item2) {
+        Integer i = itemIndexMap.get(item1);
+        Integer j = itemIndexMap.get(item2);
+        if (i == null || j == null)
+            return 0.0;
+        for (int k = 0; k < neighbors[i].length; k++)
+            if (neighbors[i][k] == j)
+                return similarities[i][k];
+        return 0.0;
+    }
+
+    /**
+     * Recommend the unseen items most similar to the items of a user, scored by the sum of their similarities to the user's items.
+     *
+     * @param  user     The user name.
+     * @param  category The category name, or <tt>null</tt> for all categories.
+     * @param  N        Only the top-<tt>N</tt> items will be returned, or all of the scored items if <tt>N == 0</tt>.
+     * @return          The recommended items, sorted by the scores.
+     */
+    public List<String> recommend(String user, String category, int N) {
+        if (category != null && !tr.getCategorySet().contains(category))
+            return new ArrayList<String>();
+        int categoryID = category == null ? -1 : tr.mapCategoryNameToID(category);
+        final HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
+        Set<String> rated = tr.getRatedItems(user);
+        for (String item : rated) {
+            Integer i = itemIndexMap.get(item);
+            if (i == null)
+                continue;
+            for (int k = 0; k < neighbors[i].length; k++) {
+                int j = neighbors[i][k];
+                if (category != null && itemCategories[j] != categoryID)
+                    continue;
+                Double score = scores.get(j);
+                scores.put(j, (score == null ? 0.0 : score) + similarities[i][k]);
+            }
+        }
+        for (String item : rated) {
+            Integer i = itemIndexMap.get(item);
+            if (i != null)
+                scores.remove(i);
+        }
+
+        List<Integer> ranked = new ArrayList<Integer>(scores.keySet());
+        Collections.sort(ranked, new Comparator<Integer>() {
+            public int compare(Integer item1, Integer item2) {
+                int c = -Double.compare(scores.get(item1), scores.get(item2));
+                return c != 0 ? c : Integer.compare(item1, item2);
+            }
+        });
+        List<String> result = new ArrayList<String>();
+        for (int j : ranked) {
+            if (N > 0 && result.size() >= N)
+                break;
+            result.add(items.get(j));
+        }
+        return result;
+    }
+
+    /**
+     * Keep the <tt>K</tt> best of the scored items as the neighbors of item <tt>i</tt> (ties broken by the smaller index).
+     */
+    private void keepTopK(int i, int[] candidates, float[] scores, int n, int K) {
+        Integer[] order = new Integer[n];
+        for (int t = 0; t < n; t++)
+            order[t] = t;
+        final int[] c = candidates;
+        final float[] s = scores;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer t1, Integer t2) {
+                int r = -Float.compare(s[t1], s[t2]);
+                return r != 0 ? r : Integer.compare(c[t1], c[t2]);
+            }
+        });
+        int k = Math.min(K, n);
+        neighbors[i] = new int[k];
+        similarities[i] = new float[k];
+        for (int t = 0; t < k; t++) {
+            neighbors[i][t] = candidates[order[t]];
+            similarities[i][t] = scores[order[t]];
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.*;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Parses the prediction file written by libFM (one number per line) straight from the bytes into a <tt>double[]</tt>,
+ * without a <tt>String</tt> or a <tt>Double</tt> for every line.
+ * The read buffer is reused from one file to the next.
+ *
+ * A number with at most 15 significant digits and a small exponent, like every number libFM writes, is converted by a single
+ * multiplication or division by an exact power of ten, which gives exactly the same <tt>double</tt> as <tt>Double.parseDouble</tt>.
+ * Any other number is handed over to <tt>Double.parseDouble</tt>.
+ */
+public class LibfmDecoder {
+    static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    static final int MAX_TOKEN_LENGTH = 64;
+
+    ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    byte[] token = new byte[MAX_TOKEN_LENGTH];
+    double[] values = new double[1024];
+
+    /**
+     * Receives the predictions of a file one by one.
+     */
+    public interface Sink {
+        /**
+         * @param  index       The index of the line.
+         * @param  value       The prediction.
+         * @throws IOException if fails to process the prediction.
+         */
+        void accept(int index, double value) throws IOException;
+    }
+
+    /**
+     * Read all of the predictions in a file.
+     *
+     * @param  path                  The libFM output file.
+     * @throws IOException           if fails to read the file.
+     * @throws NumberFormatException if a line is not a number.
+     * @return                       The predictions in the order of the lines.
+     */
+    public double[] read(Path path) throws IOException {
+        final int[] nValues = {0};
+        read(path, new Sink() {
+            public void accept(int index, double value) {
+                if (index == values.length)
+                    values = Arrays.copyOf(values, index * 2);
+                values[index] = value;
+                nValues[0] = index + 1;
+            }
+        });
+        return Arrays.copyOf(values, nValues[0]);
+    }
+
+    /**
+     * Read the predictions in a file one by one, without keeping them.
+     *
+     * @param  path                  The libFM output file.
+     * @param  sink                  Receives the predictions in the order of the lines.
+     * @throws IOException           if fails to read the file.
+     * @throws NumberFormatException if a line is not a number.
+     * @return                       The number of predictions.
+     */
+    public int read(Path path, Sink sink) throws IOException {
+        int nValues = 0;
+        int tokenLength = 0;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n' || b == '\r' || b == ' ' || b == '\t') {
+                        if (tokenLength > 0) {
+                            sink.accept(nValues++, parseDouble(token, tokenLength));
+                            tokenLength = 0;
+                        }
+                    }
+                    else if (tokenLength < MAX_TOKEN_LENGTH)
+                        token[tokenLength++] = b;
+                    else
+                        throw new NumberFormatException("Too long a number in " + path);
+                }
+                buffer.clear();
+            }
+            if (tokenLength > 0)
+                sink.accept(nValues++, parseDouble(token, tokenLength));
+        } finally {
+            channel.close();
+        }
+        return nValues;
+    }
+
+    /**
+     * Convert the ASCII bytes of a number into a <tt>double</tt>, exactly like <tt>Double.parseDouble</tt>.
+     *
+     * @param  s                     The bytes.
+     * @param  n                     The number of bytes.
+     * @throws NumberFormatException if the bytes are not a number.
+     * @return                       The number.
+     */
+    static double parseDouble(byte[] s, int n) {
+        int i = 0;
+        boolean negative = false;
+        if (i < n && (s[i] == '-' || s[i] == '+'))
+            negative = s[i++] == '-';
+
+        // the significant digits as an integer, and the power of ten to scale it by
+        long mantissa = 0;
+        int nSignificant = 0;
+        int exponent = 0;
+        int nDigits = 0;
+        for (; i < n && s[i] >= '0' && s[i] <= '9'; i++, nDigits++) {
+            mantissa = mantissa * 10 + (s[i] - '0');
+            if (mantissa != 0)
+                nSignificant++;
+        }
+        if (i < n && s[i] == '.') {
+            for (i++; i < n && s[i] >= '0' && s[i] <= '9'; i++, nDigits++) {
+                mantissa = mantissa * 10 + (s[i] - '0');
+                if (mantissa != 0)
+                    nSignificant++;
+                exponent--;
+            }
+        }
+        if (nDigits > 0 && i < n && (s[i] == 'e' || s[i] == 'E')) {
+            int j = i + 1;
+            boolean negativeExponent = false;
+            if (j < n && (s[j] == '-' || s[j] == '+'))
+                negativeExponent = s[j++] == '-';
+            int value = 0;
+            int start = j;
+            for (; j < n && s[j] >= '0' && s[j] <= '9' && value < 1000; j++)
+                value = value * 10 + (s[j] - '0');
+            if (j > start) {
+                exponent += negativeExponent ? -value : value;
+                i = j;
+            }
+        }
+
+        if (i != n || nDigits == 0 || nSignificant > 15 || exponent < -22 || exponent > 22)
+            return Double.parseDouble(new String(s, 0, n, StandardCharsets.US_ASCII));
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/**
+ * Encodes instances into lines in libFM format straight into a reusable byte buffer, from the user and item IDs,
+ * without building a <tt>String</tt> for every line.
+ * A line has the same features as one made by <tt>Transformation.convertToLibfmFormat</tt>: the user, the item, the item's category and the side features.
+ *
+ * The lines stay in the buffer until <tt>clear()</tt>, so that any of them, or all but one of them like the training data of a leave-one-out fold,
+ * can be written out again and again without encoding them again.
+ */
+public class LibfmEncoder {
+    Transformation tr;
+    int[] categories;                     // the category ID of each item ID, or -1
+    int[][] userFeatures;                 // the side feature IDs of each user ID
+    int[][] itemFeatures;                 // the side feature IDs of each item ID
+    byte[] buffer = new byte[1 << 16];
+    int length = 0;
+    int[] lineEnds = new int[1024];       // the end offset (after the line break) of each line
+    int nLines = 0;
+
+    /**
+     * @param tr The data giving the categories and the side features of the users and items.
+     */
+    public LibfmEncoder(Transformation tr) {
+        this.tr = tr;
+        refresh();
+    }
+
+    /**
+     * Make an empty encoder sharing the categories and the side features read by another one, e.g. one for each request.
+     * The tables are only ever replaced by <tt>refresh()</tt>, never changed, so the two encoders can be used by different threads.
+     *
+     * @param tables The encoder whose tables are shared.
+     */
+    public LibfmEncoder(LibfmEncoder tables) {
+        this.tr = tables.tr;
+        this.categories = tables.categories;
+        this.userFeatures = tables.userFeatures;
+        this.itemFeatures = tables.itemFeatures;
+    }
+
+    /**
+     * Read the categories and the side features of all users and items again, e.g. after new ones have been added to the data.
+     * This is done automatically when an unknown user or item ID is encoded.
+     */
+    public void refresh() {
+        Transformation tr = this.tr.view();
+        int n = tr.getNumFeatures();
+        categories = new int[n];
+        userFeatures = new int[n][];
+        itemFeatures = new int[n][];
+        Arrays.fill(categories, -1);
+        for (String user : tr.getUserList())
+            userFeatures[tr.mapUserNameToID(user)] = tr.getUserFeatures(user);
+        for (String item : tr.getItemList()) {
+            int itemID = tr.mapItemNameToID(item);
+            Integer category = tr.getCategory(item);
+            categories[itemID] = category == null ? -1 : category;
+            itemFeatures[itemID] = tr.getItemFeatures(item);
+        }
+    }
+
+    /**
+     * Append a line.
+     *
+     * @param  target The target rating, or -1 for an instance to be predicted.
+     * @param  userID The user ID.
+     * @param  itemID The item ID.
+     * @return        The index of the line.
+     */
+    public int add(int target, int userID, int itemID) {
+        if (userID >= userFeatures.length || itemID >= itemFeatures.length || userFeatures[userID] == null || itemFeatures[itemID] == null)
+            refresh();
+        int[] userSideFeatures = userFeatures[userID];
+        int[] itemSideFeatures = itemFeatures[itemID];
+        int category = categories[itemID];
+
+        // at most 11 characters for every number, and 3 more for " " and ":1"
+        ensureCapacity(length + 14 * (4 + userSideFeatures.length + itemSideFeatures.length));
+        appendInt(target);
+        appendFeature(userID);
+        appendFeature(itemID);
+        if (category >= 0)
+            appendFeature(category);
+        for (int feature : userSideFeatures)
+            appendFeature(feature);
+        for (int feature : itemSideFeatures)
+            appendFeature(feature);
+        buffer[length++] = '\n';
+
+        if (nLines == lineEnds.length)
+            lineEnds = Arrays.copyOf(lineEnds, nLines * 2);
+        lineEnds[nLines] = length;
+        return nLines++;
+    }
+
+    /**
+     * Append all of the ratings in the data, in the order of <tt>Transformation.getLibfmFormatLines()</tt>.
+     * The index of each line is the index of its triple.
+     *
+     * @param ratings The ratings from <tt>Transformation.getRatingTriples()</tt>.
+     */
+    public void addAll(Transformation.RatingTriples ratings) {
+        for (int i = 0; i < ratings.size(); i++)
+            add(ratings.ratings[i], ratings.users[i], ratings.items[i]);
+    }
+
+    /**
+     * @return The number of lines.
+     */
+    public int size() { return nLines; }
+
+    /**
+     * Remove all of the lines, keeping the buffer for the next ones.
+     */
+    public void clear() {
+        length = 0;
+        nLines = 0;
+    }
+
+    /**
+     * Write all of the lines to a stream.
+     *
+     * @param  out         The stream.
+     * @throws IOException if fails to write.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+
+    /**
+     * Write all of the lines to a file.
+     *
+     * @param  path        The file path.
+     * @throws IOException if fails to write the file.
+     */
+    public void write(Path path) throws IOException {
+        OutputStream out = Files.newOutputStream(path);
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write a single line to a file.
+     *
+     * @param  path        The file path.
+     * @param  line        The index of the line.
+     * @throws IOException if fails to write the file.
+     */
+    public void writeLine(Path path, int line) throws IOException {
+        OutputStream out = Files.newOutputStream(path);
+        try {
+            out.write(buffer, lineStart(line), lineEnds[line] - lineStart(line));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write all of the lines but one to a file.
+     *
+     * @param  path        The file path.
+     * @param  line        The index of the line left out.
+     * @throws IOException if fails to write the file.
+     */
+    public void writeAllExcept(Path path, int line) throws IOException {
+        OutputStream out = Files.newOutputStream(path);
+        try {
+            out.write(buffer, 0, lineStart(line));
+            out.write(buffer, lineEnds[line], length - lineEnds[line]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private int lineStart(int line) {
+        if (line < 0 || line >= nLines)
+            throw new IndexOutOfBoundsException("No line " + line + " in " + nLines + " lines");
+        return line == 0 ? 0 : lineEnds[line - 1];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+
+    private void appendFeature(int feature) {
+        buffer[length++] = ' ';
+        appendInt(feature);
+        buffer[length++] = ':';
+        buffer[length++] = '1';
+    }
+
+    private void appendInt(int value) {
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int nDigits = 1;
+        for (int v = value; v >= 10; v /= 10)
+            nDigits++;
+        for (int i = length + nDigits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += nDigits;
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a binary list file written by <tt>ListWriter</tt> through a memory-mapped file.
+ * The file is mapped window by window, so files larger than the heap (or than 2GB) can be read as well.
+ * The text and gzip formats are read by <tt>TextListReader</tt> (see <tt>open()</tt>), with the same interface.
+ *
+ * A typical loop:
+ * <pre>
+ * ListReader reader = ListReader.open(outputPath, format);
+ * while (reader.next())
+ *     process(reader.getUser(), reader.getCategory(), reader.getItems());
+ * reader.close();
+ * </pre>
+ */
+public class ListReader implements Closeable {
+    static final long WINDOW_SIZE = 1L << 30;
+
+    FileChannel channel;
+    long fileSize;
+    long windowStart;
+    MappedByteBuffer window;
+    boolean hasCategory;
+    String user;
+    String category;
+    List<String> items = new ArrayList<String>();
+
+    /**
+     * Open a list file written by <tt>ListWriter.open</tt>.
+     *
+     * @param  outputPath  The output file path given to <tt>ListWriter.open</tt> (the suffix of the format is appended here).
+     * @param  format      One of <tt>"text"</tt>, <tt>"gzip"</tt> and <tt>"binary"</tt>.
+     * @throws IOException if the file cannot be opened or is not a list file.
+     * @return             The opened reader.
+     */
+    public static ListReader open(String outputPath, String format) throws IOException {
+        if (format == null || format.equals("text"))
+            return new TextListReader(Files.newInputStream(Paths.get(outputPath)), outputPath);
+        if (format.equals("gzip"))
+            return new TextListReader(new GZIPInputStream(Files.newInputStream(Paths.get(outputPath + ".gz")), ListWriter.BUFFER_SIZE), outputPath + ".gz");
+        if (format.equals("binary"))
+            return new ListReader(Paths.get(outputPath + ".bin"));
+        throw new IllegalArgumentException("Unknown output format: " + format);
+    }
+
+    ListReader() {
+    }
+
+    /**
+     * Open a binary list file.
+     *
+     * @param  path        The file path.
+     * @throws IOException if the file cannot be opened or is not a binary list file.
+     */
+    public ListReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        map(0);
+        if (fileSize < 12 || window.getInt() != ListWriter.BINARY_MAGIC)
+            throw new IOException("Not a binary list file: " + path);
+        if (window.getInt() != ListWriter.BINARY_VERSION)
+            throw new IOException("Unsupported binary list version: " + path);
+        this.hasCategory = window.getInt() != 0;
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @throws IOException if the file is truncated.
+     * @return <tt>true</tt> if a record has been read, <tt>false</tt> at the end of the file.
+     */
+    public boolean next() throws IOException {
+        if (windowStart + window.position() >= fileSize)
+            return false;
+        user = readString();
+        category = hasCategory ? readString() : null;
+        items.clear();
+        String item = null;
+        while ((item = readString()) != null)
+            items.add(item);
+        return true;
+    }
+
+    /**
+     * @return The user of the current record.
+     */
+    public String getUser() { return user; }
+
+    /**
+     * @return The category of the current record, or <tt>null</tt> if the records carry no category.
+     */
+    public String getCategory() { return category; }
+
+    /**
+     * @return The items of the current record. The list is reused by the next call of <tt>next()</tt>.
+     */
+    public List<String> getItems() { return items; }
+
+    /**
+     * @return Whether the records carry categories.
+     */
+    public boolean hasCategory() { return hasCategory; }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, fileSize - start));
+    }
+
+    /** Make sure that the next <tt>n</tt> bytes are inside the mapped window. */
+    private void ensure(int n) throws IOException {
+        if (window.remaining() >= n)
+            return;
+        long position = windowStart + window.position();
+        if (position + n > fileSize)
+            throw new EOFException("Truncated binary list file");
+        map(position);
+    }
+
+    private String readString() throws IOException {
+        ensure(2);
+        int length = window.getShort() & 0xFFFF;
+        if (length == ListWriter.END_OF_RECORD)
+            return null;
+        ensure(length);
+        byte[] bytes = new byte[length];
+        window.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The text format: a header telling whether the records carry categories, then one line per record
+     * with the user, the category (only if the header has it) and the items separated by spaces.
+     * The fields are split at the first commas, so only the items may contain commas.
+     */
+    static class TextListReader extends ListReader {
+        BufferedReader in;
+
+        TextListReader(InputStream stream, String path) throws IOException {
+            this.in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8), ListWriter.BUFFER_SIZE);
+            String header = in.readLine();
+            if (header == null || !(header.equals("user_id,items") || header.equals("user_id,category,items"))) {
+                in.close();
+                throw new IOException("Not a text list file: " + path);
+            }
+            this.hasCategory = header.equals("user_id,category,items");
+        }
+
+        public boolean next() throws IOException {
+            String line = in.readLine();
+            if (line == null)
+                return false;
+            int start = line.indexOf(',');
+            if (start < 0)
+                throw new IOException("Malformed list record: " + line);
+            user = line.substring(0, start++);
+            category = null;
+            if (hasCategory) {
+                int end = line.indexOf(',', start);
+                if (end < 0)
+                    throw new IOException("Malformed list record: " + line);
+                category = line.substring(start, end);
+                start = end + 1;
+            }
+            items.clear();
+            if (start == line.length())
+                return true;   // a record without items
+            for (int end; (end = line.indexOf(' ', start)) >= 0; start = end + 1)
+                items.add(line.substring(start, end));
+            items.add(line.substring(start));
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
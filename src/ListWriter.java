@@ -0,0 +1,200 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams recommendation lists to an output file, one record (a user, optionally a category, and the recommended items) at a time.
+ * Nothing but the current record is kept in memory, so the lists of all users never sit in memory together.
+ * A record without any item is not written.
+ *
+ * Three formats are supported:
+ * <ul>
+ * <li><tt>"text"</tt>: the CSV-like format "user_id,items" (or "user_id,category,items") where the items are separated by spaces.</li>
+ * <li><tt>"gzip"</tt>: the text format compressed by gzip. The suffix ".gz" is appended to the output path.</li>
+ * <li><tt>"binary"</tt>: a length-prefixed format which can be read through a memory-mapped file by <tt>ListReader</tt>. The suffix ".bin" is appended to the output path.</li>
+ * </ul>
+ */
+public abstract class ListWriter implements Closeable {
+    /** The magic number at the beginning of a binary list file ("MSLB"). */
+    public static final int BINARY_MAGIC = 0x4D534C42;
+    /** The version of the binary list format. */
+    public static final int BINARY_VERSION = 1;
+    /** The string length which terminates a record in a binary list file. */
+    public static final int END_OF_RECORD = 0xFFFF;
+
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Open a writer for the given format.
+     *
+     * @param  outputPath  The output file path (a suffix may be appended according to the format).
+     * @param  format      One of <tt>"text"</tt>, <tt>"gzip"</tt> and <tt>"binary"</tt>.
+     * @param  hasCategory Whether each record carries a category.
+     * @throws IOException if the output file cannot be opened.
+     * @return             The opened writer.
+     */
+    public static ListWriter open(String outputPath, String format, boolean hasCategory) throws IOException {
+        if (format == null || format.equals("text"))
+            return new TextListWriter(Files.newOutputStream(Paths.get(outputPath)), hasCategory);
+        if (format.equals("gzip"))
+            return new TextListWriter(new GZIPOutputStream(Files.newOutputStream(Paths.get(outputPath + ".gz")), BUFFER_SIZE), hasCategory);
+        if (format.equals("binary"))
+            return new BinaryListWriter(Files.newOutputStream(Paths.get(outputPath + ".bin")), hasCategory);
+        throw new IllegalArgumentException("Unknown output format: " + format);
+    }
+
+    /**
+     * Start a new record.
+     *
+     * @param  user        The user name.
+     * @param  category    The category name, or <tt>null</tt> if the records carry no category.
+     * @throws IOException if fails to write the file.
+     */
+    public abstract void beginRecord(String user, String category) throws IOException;
+
+    /**
+     * Append an item to the current record.
+     *
+     * @param  item        The item name.
+     * @throws IOException if fails to write the file.
+     */
+    public abstract void addItem(String item) throws IOException;
+
+    /**
+     * Finish the current record.
+     *
+     * @throws IOException if fails to write the file.
+     */
+    public abstract void endRecord() throws IOException;
+
+    /**
+     * Whether a record has already been written by an earlier run of the same job (see <tt>Checkpoint.CheckpointedListWriter</tt>),
+     * so that it can be skipped.
+     *
+     * @param  user     The user name.
+     * @param  category The category name, or <tt>null</tt> if the records carry no category.
+     * @return          <tt>true</tt> if the record can be skipped.
+     */
+    public boolean isDone(String user, String category) {
+        return false;
+    }
+
+    /**
+     * Write a whole record.
+     *
+     * @param  user        The user name.
+     * @param  category    The category name, or <tt>null</tt> if the records carry no category.
+     * @param  items       The recommended items.
+     * @throws IOException if fails to write the file.
+     */
+    public void writeRecord(String user, String category, Iterable<String> items) throws IOException {
+        beginRecord(user, category);
+        for (String item : items)
+            addItem(item);
+        endRecord();
+    }
+
+    /**
+     * The text format. The record prefix is written when the first item arrives, so that empty records are skipped.
+     */
+    static class TextListWriter extends ListWriter {
+        Writer out;
+        String user;
+        String category;
+        boolean started;
+
+        TextListWriter(OutputStream stream, boolean hasCategory) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+            this.out.write(hasCategory ? "user_id,category,items\n" : "user_id,items\n");
+        }
+
+        public void beginRecord(String user, String category) {
+            this.user = user;
+            this.category = category;
+            this.started = false;
+        }
+
+        public void addItem(String item) throws IOException {
+            if (!started) {
+                out.write(user);
+                out.write(',');
+                if (category != null) {
+                    out.write(category);
+                    out.write(',');
+                }
+                started = true;
+            }
+            else
+                out.write(' ');
+            out.write(item);
+        }
+
+        public void endRecord() throws IOException {
+            if (started)
+                out.write('\n');
+            started = false;
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * The binary format.
+     * The file starts with three <tt>int</tt>s: the magic number, the version and a flag telling whether the records carry categories.
+     * Each record is the user, the category (only if the flag is set) and the items, all stored as UTF-8 strings
+     * prefixed by their lengths in unsigned <tt>short</tt>s; the item list is terminated by the length <tt>END_OF_RECORD</tt>.
+     */
+    static class BinaryListWriter extends ListWriter {
+        DataOutputStream out;
+        boolean hasCategory;
+        String user;
+        String category;
+        boolean started;
+
+        BinaryListWriter(OutputStream stream, boolean hasCategory) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+            this.hasCategory = hasCategory;
+            this.out.writeInt(BINARY_MAGIC);
+            this.out.writeInt(BINARY_VERSION);
+            this.out.writeInt(hasCategory ? 1 : 0);
+        }
+
+        public void beginRecord(String user, String category) {
+            this.user = user;
+            this.category = category;
+            this.started = false;
+        }
+
+        public void addItem(String item) throws IOException {
+            if (!started) {
+                writeString(user);
+                if (hasCategory)
+                    writeString(category);
+                started = true;
+            }
+            writeString(item);
+        }
+
+        public void endRecord() throws IOException {
+            if (started)
+                out.writeShort(END_OF_RECORD);
+            started = false;
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length >= END_OF_RECORD)
+                throw new IOException("Name too long for the binary list format: " + s);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 
@@ -8,12 +10,36 @@ import java.nio.charset.StandardCharsets;
  */
 
 public class Recommender {
+    static final int TEST_CHUNK_LINES = 1 << 16;               // the test lines of a full list encoded at once
+
     String libfmPath;
     String trainFilePath;
     String testFilePath;
     String predictionFilePath;
     int nFactors;
     Transformation tr;
+    volatile TrainFile sharedTrainFile;                        // the training file of the newest version written so far, or null
+    final Object trainFileLock = new Object();                 // guards the readers of the training files
+    String modelSavePath;
+    volatile FactorModel model;
+    volatile Transformation modelData;                         // the version of the data the model has been trained on or grown to
+    SGDTrainer trainer = new SGDTrainer();
+    int foldInEpochs = 5;
+    ReadWriteLock modelLock = new ReentrantReadWriteLock();   // fold-in and model swaps exclude predictions
+    List<String[]> foldedDuringRetrain;                        // ratings folded into the old model while retraining, or null
+    ScheduledExecutorService retrainScheduler;
+    CandidateGenerator candidateGenerator;
+    int candidateCount;
+    ItemSimilarity itemSimilarity;
+    int itemSimilarityMaxRatings;
+    CandidateGenerator.Popularity popularity;                  // fills up the short answers of the similarities without a model
+    int listBudget;                                            // the items of a full list kept in memory, or 0 for all
+    volatile LibfmEncoder testEncoder;                         // the tables of the newest version, shared by the encoders of the requests
+    ThreadLocal<LibfmDecoder> decoders = new ThreadLocal<LibfmDecoder>() {
+        protected LibfmDecoder initialValue() {
+            return new LibfmDecoder();
+        }
+    };
 
     public Recommender(String libfmPath, int nFactors, Transformation tr) {
         this.libfmPath = libfmPath;
@@ -45,16 +71,90 @@ public class Recommender {
      */
     public void setPredictionPath(String s) { this.predictionFilePath = s; }
 
+    /**
+     * Let libFM save the trained model to <tt>s</tt> (in the libFM model format) when calling <tt>run()</tt>.
+     * This requires a libFM version supporting the option <tt>-save_model</tt> (1.4.4 or later).
+     *
+     * @param s The libFM model file path, or <tt>null</tt> not to save the model.
+     */
+    public void setModelSavePath(String s) { this.modelSavePath = s; }
+
+    /**
+     * Score only the candidates picked by <tt>generator</tt> in top-N recommendations, instead of all unseen items.
+     * Complete lists (<tt>N == 0</tt>) still score all unseen items.
+     *
+     * @param generator The candidate generator, or <tt>null</tt> to score all unseen items.
+     * @param K         The number of candidates per user (and category).
+     */
+    public void setCandidateGenerator(CandidateGenerator generator, int K) {
+        this.candidateGenerator = generator;
+        this.candidateCount = K;
+    }
+
+    /**
+     * Answer the users with at most <tt>maxRatings</tt> ratings from an item-item similarity engine instead of libFM.
+     * With a large <tt>maxRatings</tt> (like <tt>Integer.MAX_VALUE</tt>), all users are answered from it.
+     * Only the top-N lists (<tt>N &gt; 0</tt>) are answered from it, since its answer contains only the items similar to the user's items;
+     * the complete lists (<tt>N == 0</tt>) are always ranked by libFM, so that they still cover all of the unseen items.
+     * When fewer than <tt>N</tt> items are similar to the user's items (or the user has no rating at all), the list is filled up
+     * with the best other unseen items by the trained or loaded model, or by their popularity if there is no model or the model does not know the user.
+     *
+     * @param similarity The similarity engine, or <tt>null</tt> to answer all users with libFM.
+     * @param maxRatings The largest number of ratings of a user answered from <tt>similarity</tt>.
+     */
+    public void setItemSimilarity(ItemSimilarity similarity, int maxRatings) {
+        this.itemSimilarity = similarity;
+        this.itemSimilarityMaxRatings = maxRatings;
+        this.popularity = similarity == null ? null : new CandidateGenerator.Popularity(similarity.tr);
+    }
+
+    /**
+     * Rank the full lists (<tt>N == 0</tt>) of <tt>writeRecommendationList()</tt> and <tt>recommendInBatch()</tt>
+     * in at most <tt>budget</tt> items of memory, spilling sorted runs to temporary files (see <tt>ExternalRanking</tt>).
+     * <tt>recommendInBatch()</tt> divides the budget among the lists it ranks at once.
+     *
+     * @param budget The number of items kept in memory by the lists being ranked, or 0 to keep whole lists in memory.
+     */
+    public void setListBudget(int budget) {
+        this.listBudget = budget;
+    }
+
+    /**
+     * Get the model used by <tt>predict()</tt>.
+     *
+     * @return The model, or <tt>null</tt> if no model has been trained or loaded.
+     */
+    public FactorModel getModel() { return model; }
+
     /**
      * Run libFM for recommendation.
      * First, the command used to call libFM is built.
      * Then, this command is executed with a <tt>ProcessBuilder</tt> object.
      *
-     * @return The <tt>List</tt> of predicted ratings for items in <tt>testFilePath</tt>.
-     * @throws IOException      if any of the required files are not properly specified.
+     * @return The predicted ratings for the lines in <tt>testFilePath</tt>.
+     * @throws IOException      if any of the required files are not properly specified, or libFM exits with an error code.
      * @throws RuntimeException if some other error occurs during the execution of libFM.
      */
-    public List<Double> run() throws IOException {
+    public double[] run() throws IOException {
+        execute(trainFilePath, testFilePath, predictionFilePath, modelSavePath);
+
+        // parse prediction file, return the result
+        Path p = FileSystems.getDefault().getPath(predictionFilePath);
+        return parsePredictionFile(p);
+    }
+
+    /**
+     * Run libFM on the given files, leaving the predictions in <tt>predictionFilePath</tt>.
+     * The recommendations pass their own files, so that concurrent requests do not overwrite the paths set for <tt>run()</tt>.
+     *
+     * @param  trainFilePath      The libFM training file path.
+     * @param  testFilePath       The libFM testing file path.
+     * @param  predictionFilePath The libFM output file path.
+     * @param  modelSavePath      The path to save the libFM model to, or <tt>null</tt>.
+     * @throws IOException        if any of the required files are not properly specified, or libFM exits with an error code.
+     * @throws RuntimeException   if some other error occurs during the execution of libFM.
+     */
+    void execute(String trainFilePath, String testFilePath, String predictionFilePath, String modelSavePath) throws IOException {
         // sanity check
         if (trainFilePath == null) throw new IOException("Training file not specified");
         if (testFilePath == null) throw new IOException("Testing file not specified");
@@ -73,11 +173,16 @@ public class Recommender {
         args.add("'1,1," + nFactors + "'");
         args.add("-out");
         args.add(predictionFilePath);
+        if (modelSavePath != null) {
+            args.add("-save_model");
+            args.add(modelSavePath);
+        }
 
         // run libFM
         ProcessBuilder pb = new ProcessBuilder(args);
         pb.redirectErrorStream(true);
-        BufferedReader stdout = new BufferedReader(new InputStreamReader(pb.start().getInputStream()));
+        Process process = pb.start();
+        BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
         String line = null;
         while ((line = stdout.readLine()) != null) {
             if (line.contains("ERROR: unable to open"))
@@ -85,30 +190,391 @@ public class Recommender {
             else if (line.contains("ERROR"))
                 throw new RuntimeException("Caught error from libFM. Please check the model parameters.");
         }
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0)
+                throw new IOException("libFM exited with the code " + exitCode);
+        } catch (InterruptedException ex) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running libFM", ex);
+        }
+    }
 
-        // parse prediction file, return the result
-        Path p = FileSystems.getDefault().getPath(predictionFilePath);
-        return parsePredictionFile(p);
+    /**
+     * Train libFM on all of the data once, and keep the learned parameters in the memory-mapped model file <tt>modelPath</tt>.
+     * After that, <tt>predict()</tt> answers without running libFM, and other processes can share the model with <tt>loadModel()</tt>.
+     *
+     * @param  modelPath   The path of the model file to be created.
+     * @throws IOException if fails to read or write a file.
+     */
+    public void train(String modelPath) throws IOException {
+        // libFM needs a test file, so an arbitrary observed pair is used
+        Path testPath = Files.createTempFile(null, null);
+        Path predictionPath = Files.createTempFile(null, null);
+        Path libfmModelPath = Files.createTempFile(null, null);
+        Transformation data = tr.view();
+        Transformation.RatingTriples ratings = data.getRatingTriples();
+        LibfmEncoder encoder = getTestEncoder(data);
+        if (ratings.size() > 0)
+            encoder.add(ratings.ratings[0], ratings.users[0], ratings.items[0]);
+        encoder.write(testPath);
+
+        TrainFile trainFile = acquireTrainFile(data);
+        try {
+            execute(trainFile.path.toString(), testPath.toString(), predictionPath.toString(), libfmModelPath.toString());
+            FactorModel trained = FactorModel.fromLibfmModel(libfmModelPath, Paths.get(modelPath), data.getNumFeatures());
+            trained.close();
+        } finally {
+            releaseTrainFile(trainFile);
+            Files.delete(testPath);
+            Files.delete(predictionPath);
+            Files.delete(libfmModelPath);
+        }
+        setModel(FactorModel.open(Paths.get(modelPath)), data);
+    }
+
+    /**
+     * Train a model in this process by SGD (see <tt>SGDTrainer</tt>) instead of libFM, and keep it in the memory-mapped model file <tt>modelPath</tt>.
+     * The model stays writable, so that <tt>foldIn()</tt> can update it.
+     *
+     * @param  modelPath   The path of the model file to be created.
+     * @throws IOException if fails to write the model file.
+     */
+    public void trainInProcess(String modelPath) throws IOException {
+        Transformation data = tr.view();
+        setModel(trainNewModel(Paths.get(modelPath), data), data);
+    }
+
+    /**
+     * Replace the model, together with the version of the data it has been trained on.
+     *
+     * @param  trained     The new model.
+     * @param  data        The version of the data of the model.
+     * @throws IOException if fails to close the old model.
+     */
+    void setModel(FactorModel trained, Transformation data) throws IOException {
+        modelLock.writeLock().lock();
+        try {
+            if (model != null)
+                model.close();
+            model = trained;
+            modelData = data;
+        } finally {
+            modelLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the version of the data to recommend from with the model: the current one if the model has parameters for all of its features,
+     * otherwise the one the model has been trained on or last grown to (see <tt>foldIn()</tt>), so that the feature IDs of the model
+     * and of the data always agree. So after new users or items are added, or after the data has been read again,
+     * the recommendations stay on the data of the model until the model is updated or retrained.
+     *
+     * @return A view of the data, or of the current data if there is no model.
+     */
+    Transformation getModelData() {
+        Transformation data = tr.view();
+        modelLock.readLock().lock();
+        try {
+            if (model == null || modelData == null
+                    || (data.getReadVersion() == modelData.getReadVersion() && data.getNumFeatures() <= model.getNumFeatures()))
+                return data;
+            return modelData;
+        } finally {
+            modelLock.readLock().unlock();
+        }
     }
 
     /**
-     * Parse libFM output file, return the predictions as a <tt>List</tt> of <tt>Doubles</tt>.
+     * Get the trainer used by <tt>trainInProcess()</tt>, <tt>foldIn()</tt> and <tt>retrain()</tt>, e.g. to change its learning rate.
+     *
+     * @return The trainer.
+     */
+    public SGDTrainer getTrainer() { return trainer; }
+
+    /**
+     * Set the number of passes over the affected ratings in <tt>foldIn()</tt>.
+     *
+     * @param epochs The number of passes.
+     */
+    public void setFoldInEpochs(int epochs) { this.foldInEpochs = epochs; }
+
+    /**
+     * Update the model with the ratings added by <tt>Transformation.addNewRating()</tt> since the last update, without a full retraining.
+     * Only the parameters of the users and items of the new ratings are refined by a few SGD passes over the ratings of those users;
+     * new users and items get random initial factors first.
+     * The model must be writable (trained in this process, or loaded with <tt>loadModel(modelPath, true)</tt>).
+     *
+     * @throws IOException if the model file cannot be grown for new users or items.
+     * @return             The number of new ratings used.
+     */
+    public int foldIn() throws IOException {
+        List<String[]> ratings = tr.takePendingRatings();
+        if (ratings.isEmpty())
+            return 0;
+        modelLock.writeLock().lock();
+        try {
+            foldIn(ratings);
+            if (foldedDuringRetrain != null)
+                foldedDuringRetrain.addAll(ratings);
+        } finally {
+            modelLock.writeLock().unlock();
+        }
+        return ratings.size();
+    }
+
+    /**
+     * Retrain the whole model from scratch in this process, and replace the current model file with the new one.
+     * Ratings folded in while retraining are folded into the new model again, so no update is lost.
+     * The current model keeps serving until the new one is in place, and is kept if the new one cannot be put in place.
+     *
+     * @throws IOException if fails to write the model file.
+     */
+    public void retrain() throws IOException {
+        if (model == null)
+            throw new IllegalStateException("No model has been trained or loaded");
+        Path modelPath = model.getPath();
+        Path nextPath = Paths.get(modelPath.toString() + ".next");
+        Transformation data = tr.view();
+        modelLock.writeLock().lock();
+        try {
+            foldedDuringRetrain = new ArrayList<String[]>();
+        } finally {
+            modelLock.writeLock().unlock();
+        }
+
+        FactorModel nextModel = null;
+        try {
+            nextModel = trainNewModel(nextPath, data);
+        } catch (IOException | RuntimeException ex) {
+            modelLock.writeLock().lock();
+            foldedDuringRetrain = null;
+            modelLock.writeLock().unlock();
+            throw ex;
+        }
+
+        // the new model is put in place while the current one stays open, so a failure leaves the current one serving
+        modelLock.writeLock().lock();
+        try {
+            try {
+                nextModel.moveTo(modelPath);
+            } catch (IOException ex) {
+                nextModel.close();
+                Files.deleteIfExists(nextPath);
+                throw ex;
+            }
+            FactorModel oldModel = model;
+            model = nextModel;
+            modelData = data;
+            try {
+                foldIn(foldedDuringRetrain);
+            } finally {
+                oldModel.close();   // its replaced file is gone once it is closed
+            }
+        } finally {
+            foldedDuringRetrain = null;
+            modelLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fold in new ratings right after they are added, and retrain the whole model periodically in a background thread.
+     * A failed retraining is reported and the current model is kept; the next one is still run on schedule.
+     *
+     * @param period The period between two retrainings.
+     * @param unit   The time unit of <tt>period</tt>.
+     */
+    public void scheduleRetrain(long period, TimeUnit unit) {
+        if (retrainScheduler == null)
+            retrainScheduler = Executors.newSingleThreadScheduledExecutor();
+        retrainScheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    retrain();
+                } catch (Exception ex) {
+                    // an exception escaping the task would cancel all of the later runs without a word
+                    ex.printStackTrace();
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Load a model file read-only. The file is memory-mapped, so it is shared with other processes loading the same file,
+     * and its pages are only read when they are used.
+     *
+     * @param  modelPath   The path of the model file.
+     * @throws IOException if the file cannot be opened.
+     */
+    public void loadModel(String modelPath) throws IOException {
+        loadModel(modelPath, false);
+    }
+
+    /**
+     * Load a model file.
+     *
+     * @param  modelPath   The path of the model file.
+     * @param  writable    Whether the model can be updated by <tt>foldIn()</tt> and <tt>retrain()</tt>.
+     * @throws IOException if the file cannot be opened.
+     */
+    public void loadModel(String modelPath, boolean writable) throws IOException {
+        modelLock.writeLock().lock();
+        try {
+            if (model != null)
+                model.close();
+            model = writable ? FactorModel.openWritable(Paths.get(modelPath)) : FactorModel.open(Paths.get(modelPath));
+            modelData = tr.view();
+        } finally {
+            modelLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Predict the rating of a user to an item with the trained or loaded model, on the data of the model (see <tt>getModelData()</tt>).
+     *
+     * @param  user The user name.
+     * @param  item The item name.
+     * @throws IllegalArgumentException if the user or the item is not in the data of the model.
+     * @return      The predicted rating.
+     */
+    public double predict(String user, String item) {
+        return predict(getModelData(), user, item);
+    }
+
+    /**
+     * Predict the rating of a user to an item of a version of the data with the trained or loaded model.
+     *
+     * @param  data A view of the data.
+     * @param  user The user name.
+     * @param  item The item name.
+     * @return      The predicted rating.
+     */
+    double predict(Transformation data, String user, String item) {
+        modelLock.readLock().lock();
+        try {
+            if (model == null)
+                throw new IllegalStateException("No model has been trained or loaded");
+            if (!data.getUserSet().contains(user) || !data.getItemSet().contains(item))
+                throw new IllegalArgumentException("Unknown user " + user + " or item " + item + " in the data of the model; fold the new ratings in first");
+            return model.predict(data.getFeatureIDs(user, item));
+        } finally {
+            modelLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Train a new model on all of a version of the data by SGD.
+     *
+     * @param  modelPath   The path of the model file to be created.
+     * @param  data        A view of the data.
+     * @throws IOException if fails to write the model file.
+     * @return             The trained model, opened for writing.
+     */
+    FactorModel trainNewModel(Path modelPath, Transformation data) throws IOException {
+        List<int[]> rows = new ArrayList<int[]>();
+        List<Double> targets = new ArrayList<Double>();
+        collectRatings(data, data.getUserList(), rows, targets);
+        return trainer.train(modelPath, data.getNumFeatures(), nFactors, rows, toArray(targets));
+    }
+
+    /**
+     * Fold the given ratings into the model, which then covers the current version of the data. The caller holds the write lock.
+     *
+     * @param  ratings     The new {user name, item name} pairs.
+     * @throws IOException if the model file cannot be grown for new users or items.
+     * @throws IllegalStateException if the data has been read again since the model was trained, so its feature IDs do not fit the model.
+     */
+    void foldIn(List<String[]> ratings) throws IOException {
+        if (model == null)
+            throw new IllegalStateException("No model has been trained or loaded");
+        List<int[]> rows = new ArrayList<int[]>();
+        List<Double> targets = new ArrayList<Double>();
+        BitSet trainable = new BitSet();
+        Set<String> users = new LinkedHashSet<String>();
+        Transformation data = tr.view();
+        if (modelData != null && data.getReadVersion() != modelData.getReadVersion())
+            throw new IllegalStateException("The data has been read again since the model was trained; retrain the model");
+        for (String[] rating : ratings) {
+            users.add(rating[0]);
+            trainable.set(data.mapUserNameToID(rating[0]));
+            trainable.set(data.mapItemNameToID(rating[1]));
+        }
+        collectRatings(data, users, rows, targets);
+        int nFeatures = data.getNumFeatures();
+
+        // new users and items get random initial factors
+        int oldNFeatures = model.getNumFeatures();
+        if (nFeatures > oldNFeatures) {
+            model.grow(nFeatures);
+            trainer.initialize(model, oldNFeatures, nFeatures);
+        }
+        trainer.foldIn(model, rows, toArray(targets), trainable, foldInEpochs);
+        modelData = data;
+    }
+
+    /**
+     * Collect the features and the ratings of all the ratings of some users.
+     *
+     * @param data    A view of the data.
+     * @param users   The user names.
+     * @param rows    Where to add the feature IDs of the ratings.
+     * @param targets Where to add the ratings.
+     */
+    void collectRatings(Transformation data, Collection<String> users, List<int[]> rows, List<Double> targets) {
+        for (String user : users) {
+            // ordered by the item IDs, so that the training is the same in every process
+            TreeMap<Integer, String> items = new TreeMap<Integer, String>();
+            for (String item : data.getRatedItems(user))
+                items.put(data.mapItemNameToID(item), item);
+            for (String item : items.values()) {
+                rows.add(data.getFeatureIDs(user, item));
+                targets.add((double) data.getRating(user, item));
+            }
+        }
+    }
+
+    private static double[] toArray(List<Double> values) {
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = values.get(i);
+        return array;
+    }
+
+    /**
+     * Parse libFM output file (see <tt>LibfmDecoder</tt>).
      *
      * @param  p           The libFM output file path to read from.
      * @throws IOException if fails to read the prediction file.
      * @return             The prediction results.
      */
-    public List<Double> parsePredictionFile(Path p) throws IOException {
-        List<Double> result = new ArrayList<Double>();
-        List<String> lines = Files.readAllLines(p, StandardCharsets.UTF_8);
-        for (String line : lines)
-            result.add(Double.parseDouble(line.trim()));
-        return result;
+    public double[] parsePredictionFile(Path p) throws IOException {
+        return decoders.get().read(p);
+    }
+
+    /**
+     * Get an empty encoder of the test lines of a version of the data, owned by the caller.
+     * The categories and the side features of a version are read once, and shared by the encoders of all requests on that version.
+     *
+     * @param  data A view of the data.
+     * @return      The encoder.
+     */
+    LibfmEncoder getTestEncoder(Transformation data) {
+        LibfmEncoder tables = testEncoder;
+        if (tables == null || tables.tr.getVersion() != data.getVersion()) {
+            tables = new LibfmEncoder(data);
+            LibfmEncoder current = testEncoder;
+            if (current == null || current.tr.getVersion() < data.getVersion())
+                testEncoder = tables;   // a request on an older version keeps its tables to itself
+        }
+        return new LibfmEncoder(tables);
     }
 
     /**
      * Get the top-N recommendation item list for a given user.
      * The returned list will only contain the unseen items for the user.
+     * If a candidate generator is set and <tt>N &gt; 0</tt>, only its candidates are scored.
+     * If <tt>N &gt; 0</tt>, users with only a few ratings may be answered by an item-item similarity engine (see <tt>setItemSimilarity()</tt>).
      *
      * @param  user        The user ID.
      * @param  category    The category name.
@@ -117,44 +583,103 @@ public class Recommender {
      * @return             A <tt>List</tt> of item IDs, sorted according to the predicted ratings.
      */
     public List<String> getRecommendationList(String user, String category, int N) throws IOException {
+        Transformation tr = getModelData();   // a single version of the data for the whole list
+        if (N > 0 && itemSimilarity != null && tr.getRatedItems(user).size() <= itemSimilarityMaxRatings) {
+            List<String> recommendationList = keepUnseen(tr, user, itemSimilarity.recommend(user, category, N));
+            if (recommendationList.size() < N)
+                fillUp(tr, user, category, N, recommendationList);
+            return recommendationList;
+        }
+        return rankUnseenItems(tr, user, category, N);
+    }
+
+    /**
+     * Fill up a short answer of the item-item similarities with the best other unseen items by the model,
+     * or with the most popular ones if there is no model or the user is unknown to the data.
+     *
+     * @param  tr                 A view of the data.
+     * @param  user               The user name.
+     * @param  category           The category name.
+     * @param  N                  The length of the list.
+     * @param  recommendationList The items similar to the user's items, to which the other items are added.
+     * @throws IOException        if fails to read or write a file.
+     */
+    private void fillUp(Transformation tr, String user, String category, int N, List<String> recommendationList) throws IOException {
+        List<String> others;
+        if (model != null && tr.getUserSet().contains(user))
+            others = rankUnseenItems(tr, user, category, N + recommendationList.size());
+        else
+            others = keepUnseen(tr, user, popularity.generate(user, category, N + recommendationList.size()));
+        HashSet<String> listed = new HashSet<String>(recommendationList);
+        for (String item : others) {
+            if (recommendationList.size() >= N)
+                break;
+            if (listed.add(item))
+                recommendationList.add(item);
+        }
+    }
+
+    /**
+     * Rank the unseen items (or the candidates) of a user by the model, or by libFM if there is no model.
+     *
+     * @param  tr          A view of the data.
+     * @param  user        The user name.
+     * @param  category    The category name.
+     * @param  N           Only the top-<tt>N</tt> items will be returned, or all of them if <tt>N == 0</tt>.
+     * @throws IOException if fails to read or write a file.
+     * @return             The items, sorted according to the predicted ratings.
+     */
+    private List<String> rankUnseenItems(Transformation tr, String user, String category, int N) throws IOException {
         // the list of items to be returned
         List<String> recommendationList = new ArrayList<String>();
 
-        // convert the data in this system into libFM format
-        List<String> trainLines = tr.getLibfmFormatLines();
-        List<String> testLines = new ArrayList<String>();
-        Set<String> items = tr.getItemSet();
-        for (String item : items) {
-            if (category != null && (tr.getCategory(item) == null || tr.getCategory(item) != tr.mapCategoryNameToID(category)))
-                continue;
-            if (tr.getRating(user, item) == null) {
-                testLines.add(tr.convertToLibfmFormat(user, item));
+        // convert the data in this system into libFM format, only when libFM is run
+        LibfmEncoder testLines = model == null ? getTestEncoder(tr) : null;
+        int userID = mapUser(tr, user);
+        if (candidateGenerator != null && N > 0) {
+            for (String item : keepUnseen(tr, user, candidateGenerator.generate(user, category, Math.max(candidateCount, N)))) {
+                if (testLines != null)
+                    testLines.add(-1, userID, tr.mapItemNameToID(item));
                 recommendationList.add(item);
             }
         }
+        else {
+            for (int itemID : tr.getUnseenItemIDs(userID, category)) {
+                if (testLines != null)
+                    testLines.add(-1, userID, itemID);
+                recommendationList.add(tr.mapItemIDToName(itemID));
+            }
+        }
+        if (recommendationList.isEmpty())
+            return recommendationList;
 
-        // initialize the temporary files
-        Path trainPath = Files.createTempFile(null, null);
-        Path testPath = Files.createTempFile(null, null);
-        Path predictionPath = Files.createTempFile(null, null);
-        Files.write(trainPath, trainLines, StandardCharsets.UTF_8);
-        Files.write(testPath, testLines, StandardCharsets.UTF_8);
-
-        // set file path and run recommendation
-        setTrainPath(trainPath.toString());
-        setTestPath(testPath.toString());
-        setPredictionPath(predictionPath.toString());
-        List<Double> predictions = run();
-
-        // delete the temporary files
-        Files.delete(trainPath);
-        Files.delete(testPath);
-        Files.delete(predictionPath);
+        double[] predictions = new double[recommendationList.size()];
+        if (testLines == null) {
+            // the trained or loaded model answers without libFM
+            for (int i = 0; i < predictions.length; i++)
+                predictions[i] = predict(tr, user, recommendationList.get(i));
+        }
+        else {
+            // initialize the temporary files
+            TrainFile trainFile = acquireTrainFile(tr);
+            Path testPath = Files.createTempFile(null, null);
+            Path predictionPath = Files.createTempFile(null, null);
+            try {
+                testLines.write(testPath);
+                execute(trainFile.path.toString(), testPath.toString(), predictionPath.toString(), null);
+                predictions = parsePredictionFile(predictionPath);
+            } finally {
+                // delete the temporary files
+                releaseTrainFile(trainFile);
+                Files.delete(testPath);
+                Files.delete(predictionPath);
+            }
+        }
 
         // sort the items according to the predicted scores
         HashMap<String, Double> ratingMap = new HashMap<String, Double>();
         for (int i = 0; i < recommendationList.size(); i++)
-            ratingMap.put(recommendationList.get(i), predictions.get(i));
+            ratingMap.put(recommendationList.get(i), predictions[i]);
         Collections.sort(recommendationList, new Comparator<String>() {
             public int compare(String item1, String item2) {
                 return -Double.compare(ratingMap.get(item1), ratingMap.get(item2));
@@ -167,6 +692,50 @@ public class Recommender {
         return recommendationList;
     }
 
+    /**
+     * Recommend to many users at once with the trained or loaded model (see <tt>BatchScorer</tt>), and write the lists in the order of the users.
+     * The users answered by the item-item similarities, and all users if candidates are scored (see <tt>setCandidateGenerator()</tt>),
+     * get their lists from <tt>getRecommendationList()</tt> instead. The lists already done by <tt>writer</tt> are skipped.
+     * Items with nearly equal scores may be ranked in the other order than by <tt>getRecommendationList()</tt> (see <tt>BatchScorer</tt>).
+     *
+     * @param  users       The user names.
+     * @param  categories  The category names to recommend from one by one, or <tt>null</tt> for all items.
+     * @param  N           The length of the lists, or 0 for all unseen items.
+     * @param  writer      Where to write the lists.
+     * @throws IOException if fails to write a list.
+     */
+    public void recommendInBatch(List<String> users, List<String> categories, final int N, final ListWriter writer) throws IOException {
+        if (model == null)
+            throw new IllegalStateException("No model has been trained or loaded");
+        final Transformation data = getModelData();
+        BatchScorer scorer = null;
+        modelLock.readLock().lock();
+        try {
+            scorer = new BatchScorer(data, model);
+            scorer.setListBudget(listBudget);
+        } finally {
+            modelLock.readLock().unlock();
+        }
+        scorer.recommend(users, categories, N, new BatchScorer.Output() {
+            public boolean isScored(String user, String category) {
+                if (writer.isDone(user, category) || (candidateGenerator != null && N > 0))
+                    return false;
+                return N == 0 || itemSimilarity == null || data.getRatedItems(user).size() > itemSimilarityMaxRatings;
+            }
+
+            public void write(String user, String category, Iterable<String> items) throws IOException {
+                if (writer.isDone(user, category))
+                    return;
+                if (items != null)
+                    writer.writeRecord(user, category, items);
+                else if (N == 0)
+                    writeRecommendationList(user, category, writer);
+                else
+                    writer.writeRecord(user, category, getRecommendationList(user, category, N));
+            }
+        });
+    }
+
     /**
      * Get the recommendation item list for a given user.
      * The returned list will only contain the unseen items for the user.
@@ -204,4 +773,215 @@ public class Recommender {
     public List<String> getRecommendationList(String user, int N) throws IOException {
         return getRecommendationList(user, null, N);
     }
+
+    /**
+     * Write the full recommendation list (all unseen items, <tt>N == 0</tt>) of a user like <tt>getRecommendationList()</tt> does.
+     * With a list budget (see <tt>setListBudget()</tt>), the items are streamed from the candidates to the writer:
+     * the test lines are written to the test file chunk by chunk, the predictions are read back one by one,
+     * and the items are ranked by an <tt>ExternalRanking</tt>, so the list is never held in memory as a whole.
+     *
+     * @param  user        The user name.
+     * @param  category    The category name, or <tt>null</tt> for all items.
+     * @param  writer      Where to write the list.
+     * @throws IOException if fails to read or write a file.
+     */
+    public void writeRecommendationList(String user, String category, ListWriter writer) throws IOException {
+        Transformation tr = getModelData();   // a single version of the data for the whole list
+        if (listBudget <= 0) {
+            writer.writeRecord(user, category, getRecommendationList(user, category, 0));
+            return;
+        }
+
+        int userID = mapUser(tr, user);
+        final int[] candidates = tr.getUnseenItemIDs(userID, category);
+        final ExternalRanking ranking = new ExternalRanking(listBudget);
+        try {
+            if (model != null) {
+                for (int itemID : candidates)
+                    ranking.add(itemID, predict(tr, user, tr.mapItemIDToName(itemID)));
+            }
+            else if (candidates.length > 0) {
+                TrainFile trainFile = acquireTrainFile(tr);
+                Path testPath = Files.createTempFile(null, null);
+                Path predictionPath = Files.createTempFile(null, null);
+                try {
+                    LibfmEncoder testLines = getTestEncoder(tr);
+                    OutputStream out = Files.newOutputStream(testPath);
+                    try {
+                        for (int i = 0; i < candidates.length; i++) {
+                            testLines.add(-1, userID, candidates[i]);
+                            if (testLines.size() == TEST_CHUNK_LINES || i == candidates.length - 1) {
+                                testLines.writeTo(out);
+                                testLines.clear();
+                            }
+                        }
+                    } finally {
+                        out.close();
+                    }
+
+                    execute(trainFile.path.toString(), testPath.toString(), predictionPath.toString(), null);
+                    int nPredictions = decoders.get().read(predictionPath, new LibfmDecoder.Sink() {
+                        public void accept(int index, double value) throws IOException {
+                            if (index < candidates.length)
+                                ranking.add(candidates[index], value);
+                        }
+                    });
+                    if (nPredictions != candidates.length)
+                        throw new IOException("libFM gave " + nPredictions + " predictions for " + candidates.length + " items");
+                } finally {
+                    releaseTrainFile(trainFile);
+                    Files.deleteIfExists(testPath);
+                    Files.deleteIfExists(predictionPath);
+                }
+            }
+
+            writer.beginRecord(user, category);
+            while (ranking.next())
+                writer.addItem(tr.mapItemIDToName(ranking.getItem()));
+            writer.endRecord();
+        } finally {
+            ranking.close();
+        }
+    }
+
+    /**
+     * @param  data A view of the data.
+     * @param  user The user name.
+     * @throws IllegalArgumentException if the user is not in the data (or in the data of the model, see <tt>getModelData()</tt>).
+     * @return      The user ID.
+     */
+    int mapUser(Transformation data, String user) {
+        if (!data.getUserSet().contains(user))
+            throw new IllegalArgumentException("Unknown user " + user + (model == null ? "" : " in the data of the model; fold the new ratings in first"));
+        return data.mapUserNameToID(user);
+    }
+
+    /**
+     * Keep the items which are in a version of the data and not rated by the user in it. The candidates and the item similarities
+     * are snapshots of the data when they were built, so their items may have been rated since, or be unknown to the model.
+     *
+     * @param  data  A view of the data.
+     * @param  user  The user name.
+     * @param  items The items.
+     * @return       The kept items, in the same order.
+     */
+    static List<String> keepUnseen(Transformation data, String user, List<String> items) {
+        int[] seen = data.getUserSet().contains(user) ? data.getSeenItemIDs(data.mapUserNameToID(user)) : new int[0];
+        Set<String> known = data.getItemSet();
+        List<String> kept = new ArrayList<String>(items.size());
+        for (String item : items)
+            if (known.contains(item) && Arrays.binarySearch(seen, data.mapItemNameToID(item)) < 0)
+                kept.add(item);
+        return kept;
+    }
+
+    /**
+     * Get the libFM training file holding all of the data in <tt>tr</tt>.
+     * The file is written on the first call and reused by every later recommendation, until <tt>close()</tt> is called
+     * or the data changes; then it is deleted as soon as no libFM run reads it any more.
+     *
+     * @throws IOException if fails to write the file.
+     * @return             The path of the training file.
+     */
+    public Path getSharedTrainPath() throws IOException {
+        TrainFile trainFile = acquireTrainFile(tr.view());
+        releaseTrainFile(trainFile);
+        return trainFile.path;
+    }
+
+    /**
+     * A libFM training file of one version of the data. It is written once and never changed, and deleted when it has been
+     * replaced by the file of a newer version (or never was the shared one) and no libFM run reads it any more.
+     */
+    static class TrainFile {
+        final long version;
+        final Path path;
+        int readers = 0;             // the libFM runs reading the file
+        boolean retired = false;     // no later run will read it
+
+        TrainFile(long version, Path path) {
+            this.version = version;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Get the libFM training file of a version of the data for a libFM run, which must release it with <tt>releaseTrainFile()</tt>.
+     * The file of the newest version is shared by all runs on that version; a run on an older version writes a file of its own,
+     * so a file is never rewritten while another run reads it.
+     *
+     * @param  data        A view of the data.
+     * @throws IOException if fails to write the file.
+     * @return             The training file.
+     */
+    TrainFile acquireTrainFile(Transformation data) throws IOException {
+        synchronized (trainFileLock) {
+            TrainFile current = sharedTrainFile;
+            if (current != null && current.version == data.getVersion()) {
+                current.readers++;
+                return current;
+            }
+        }
+
+        Path path = Files.createTempFile(null, null);
+        data.writeOutputFile(path.toString());
+        TrainFile written = new TrainFile(data.getVersion(), path);
+        written.readers = 1;
+        synchronized (trainFileLock) {
+            TrainFile current = sharedTrainFile;
+            if (current == null || current.version < written.version) {
+                sharedTrainFile = written;
+                if (current != null)
+                    retire(current);
+            }
+            else
+                written.retired = true;   // an older version, or the same one written by another run meanwhile
+        }
+        return written;
+    }
+
+    /**
+     * Release a training file after a libFM run, deleting it if it has been retired.
+     *
+     * @param  trainFile   The training file from <tt>acquireTrainFile()</tt>.
+     * @throws IOException if fails to delete the file.
+     */
+    void releaseTrainFile(TrainFile trainFile) throws IOException {
+        synchronized (trainFileLock) {
+            trainFile.readers--;
+            if (trainFile.retired && trainFile.readers == 0)
+                Files.deleteIfExists(trainFile.path);
+        }
+    }
+
+    /**
+     * Retire a training file, deleting it at once if no run reads it. The caller holds <tt>trainFileLock</tt>.
+     */
+    private void retire(TrainFile trainFile) throws IOException {
+        trainFile.retired = true;
+        if (trainFile.readers == 0)
+            Files.deleteIfExists(trainFile.path);
+    }
+
+    /**
+     * Delete the temporary files shared among recommendations, and close the model.
+     *
+     * @throws IOException if fails to delete a file.
+     */
+    public void close() throws IOException {
+        if (retrainScheduler != null) {
+            retrainScheduler.shutdownNow();
+            retrainScheduler = null;
+        }
+        if (model != null) {
+            model.close();
+            model = null;
+        }
+        synchronized (trainFileLock) {
+            if (sharedTrainFile != null) {
+                retire(sharedTrainFile);
+                sharedTrainFile = null;
+            }
+        }
+    }
 }
@@ -0,0 +1,141 @@
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/**
+ * Trains a factorization machine for regression by stochastic gradient descent, in the same way as libFM with <tt>-method sgd</tt>.
+ * Every instance is a set of feature IDs (all with the value 1, like the lines produced by <tt>Transformation</tt>) and a target rating.
+ *
+ * Besides training a whole model, the trainer can refine only some of the features of an existing model ("fold-in"),
+ * which keeps a model up to date with new ratings without retraining it from scratch.
+ */
+public class SGDTrainer {
+    double learnRate = 0.01;
+    double regularization = 0.01;
+    double initStdev = 0.1;
+    int epochs = 100;
+    Random random = new Random(0);
+
+    /** @param learnRate The learning rate of SGD. */
+    public void setLearnRate(double learnRate) { this.learnRate = learnRate; }
+
+    /** @param regularization The L2 regularization of the weights and the factors. */
+    public void setRegularization(double regularization) { this.regularization = regularization; }
+
+    /** @param initStdev The standard deviation of the initial factors. */
+    public void setInitStdev(double initStdev) { this.initStdev = initStdev; }
+
+    /** @param epochs The number of passes over the data when training a whole model. */
+    public void setEpochs(int epochs) { this.epochs = epochs; }
+
+    /** @param seed The seed of the random numbers (used to initialize the factors and to shuffle the data). */
+    public void setSeed(long seed) { this.random = new Random(seed); }
+
+    /**
+     * Train a new model from random initial factors.
+     *
+     * @param  modelPath   The path of the model file to be created.
+     * @param  nFeatures   The number of features.
+     * @param  nFactors    The number of latent factors of each feature.
+     * @param  rows        The feature IDs of the training instances.
+     * @param  targets     The target ratings of the training instances.
+     * @throws IOException if the model file cannot be created.
+     * @return             The trained model, opened for writing.
+     */
+    public FactorModel train(Path modelPath, int nFeatures, int nFactors, List<int[]> rows, double[] targets) throws IOException {
+        FactorModel model = FactorModel.create(modelPath, nFeatures, nFactors);
+        initialize(model, 0, nFeatures);
+        double mean = 0.0;
+        for (double target : targets)
+            mean += target;
+        model.setBias((float) (targets.length == 0 ? 0.0 : mean / targets.length));
+
+        for (int epoch = 0; epoch < epochs; epoch++)
+            for (int i : shuffledIndices(rows.size()))
+                update(model, rows.get(i), targets[i], null, true);
+        return model;
+    }
+
+    /**
+     * Refine only the parameters of the <tt>trainable</tt> features of an existing model, keeping all the others fixed.
+     *
+     * @param model     The model (opened for writing).
+     * @param rows      The feature IDs of the instances involving the trainable features.
+     * @param targets   The target ratings of the instances.
+     * @param trainable The IDs of the features to be refined.
+     * @param epochs    The number of passes over the instances.
+     */
+    public void foldIn(FactorModel model, List<int[]> rows, double[] targets, BitSet trainable, int epochs) {
+        for (int epoch = 0; epoch < epochs; epoch++)
+            for (int i : shuffledIndices(rows.size()))
+                update(model, rows.get(i), targets[i], trainable, false);
+    }
+
+    /**
+     * Set the weights of the features <tt>from</tt> to <tt>to - 1</tt> to 0, and draw their factors from N(0, initStdev^2).
+     *
+     * @param model The model (opened for writing).
+     * @param from  The first feature ID to initialize.
+     * @param to    One plus the last feature ID to initialize.
+     */
+    public void initialize(FactorModel model, int from, int to) {
+        for (int j = from; j < to; j++) {
+            model.setWeight(j, 0.0f);
+            for (int f = 0; f < model.getNumFactors(); f++)
+                model.setFactor(j, f, (float) (random.nextGaussian() * initStdev));
+        }
+    }
+
+    /**
+     * One SGD step on a single instance.
+     *
+     * @param model      The model (opened for writing).
+     * @param features   The feature IDs of the instance.
+     * @param target     The target rating of the instance.
+     * @param trainable  The IDs of the features to be updated, or <tt>null</tt> to update all of them.
+     * @param updateBias Whether the global bias is updated.
+     */
+    void update(FactorModel model, int[] features, double target, BitSet trainable, boolean updateBias) {
+        int nFactors = model.getNumFactors();
+        double[] sums = new double[nFactors];
+        double prediction = model.getBias();
+        for (int j : features)
+            prediction += model.getWeight(j);
+        for (int f = 0; f < nFactors; f++) {
+            double sumOfSquares = 0.0;
+            for (int j : features) {
+                double v = model.getFactor(j, f);
+                sums[f] += v;
+                sumOfSquares += v * v;
+            }
+            prediction += 0.5 * (sums[f] * sums[f] - sumOfSquares);
+        }
+
+        double error = prediction - target;
+        if (updateBias)
+            model.setBias((float) (model.getBias() - learnRate * error));
+        for (int j : features) {
+            if (trainable != null && !trainable.get(j))
+                continue;
+            double w = model.getWeight(j);
+            model.setWeight(j, (float) (w - learnRate * (error + regularization * w)));
+            for (int f = 0; f < nFactors; f++) {
+                double v = model.getFactor(j, f);
+                model.setFactor(j, f, (float) (v - learnRate * (error * (sums[f] - v) + regularization * v)));
+            }
+        }
+    }
+
+    private int[] shuffledIndices(int n) {
+        int[] indices = new int[n];
+        for (int i = 0; i < n; i++)
+            indices[i] = i;
+        for (int i = n - 1; i > 0; i--) {
+            int k = random.nextInt(i + 1);
+            int swap = indices[i];
+            indices[i] = indices[k];
+            indices[k] = swap;
+        }
+        return indices;
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.*;
+import java.util.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the users into shards, runs one worker process per shard, and merges the outputs of the workers.
+ *
+ * Every worker loads the same dataset snapshot (see <tt>Transformation.writeSnapshot</tt>), processes only the users of its shard,
+ * and writes its outputs in the text format with <tt>shardPath(outputPath, shardIndex)</tt> as the output path
+ * (so its top-N lists are in <tt>shardPath(outputPath, shardIndex) + ".toplist"</tt>, and so on).
+ * As every output is ordered by user IDs and each user belongs to exactly one shard,
+ * merging the shard files by user IDs reproduces the files written by a single process.
+ */
+public class ShardCoordinator {
+    /**
+     * Get the shard of a user. The shard only depends on the user name, so it is the same in every process.
+     *
+     * @param  user       The user name.
+     * @param  shardCount The number of shards.
+     * @return            The shard index, from 0 to <tt>shardCount - 1</tt>.
+     */
+    public static int shardOf(String user, int shardCount) {
+        return (user.hashCode() & 0x7fffffff) % shardCount;
+    }
+
+    /**
+     * Get the output path of a worker.
+     *
+     * @param  outputPath The output path of the whole job.
+     * @param  shardIndex The shard index of the worker.
+     * @return            The output path of the worker.
+     */
+    public static String shardPath(String outputPath, int shardIndex) {
+        return outputPath + ".shard-" + shardIndex;
+    }
+
+    /**
+     * Start one worker process per shard and wait for all of them.
+     * The worker of shard <tt>i</tt> runs <tt>Evaluator</tt> with <tt>workerArgs</tt> followed by <tt>-shard i/shardCount</tt>,
+     * and its console output is saved in <tt>shardPath(outputPath, i) + ".log"</tt>.
+     *
+     * @param  workerArgs  The arguments of <tt>Evaluator</tt> shared by all workers.
+     * @param  jvmOptions  The options of the JVMs of the workers (see <tt>getWorkerJvmOptions</tt>).
+     * @param  shardCount  The number of shards.
+     * @param  launcher    A command prefix used to start the workers (like "ssh node{i}", where {i} is replaced by the shard index),
+     *                     or <tt>null</tt> to start them on the local machine.
+     * @param  outputPath  The output path of the whole job.
+     * @throws IOException if a worker cannot be started or fails.
+     */
+    public static void runWorkers(List<String> workerArgs, List<String> jvmOptions, int shardCount, String launcher, String outputPath) throws IOException {
+        List<Process> workers = new ArrayList<Process>();
+        for (int i = 0; i < shardCount; i++) {
+            List<String> command = new ArrayList<String>();
+            if (launcher != null)
+                for (String token : launcher.trim().split("\\s+"))
+                    command.add(token.replace("{i}", String.valueOf(i)));
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(jvmOptions);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("Evaluator");
+            command.addAll(workerArgs);
+            command.add("-shard");
+            command.add(i + "/" + shardCount);
+
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(new File(shardPath(outputPath, i) + ".log"));
+            workers.add(pb.start());
+        }
+
+        List<Integer> failedShards = new ArrayList<Integer>();
+        for (int i = 0; i < shardCount; i++) {
+            try {
+                if (workers.get(i).waitFor() != 0)
+                    failedShards.add(i);
+            } catch (InterruptedException ex) {
+                for (Process worker : workers)
+                    worker.destroy();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the workers", ex);
+            }
+        }
+        if (!failedShards.isEmpty())
+            throw new IOException("Workers of shards " + failedShards + " failed. Please check " + shardPath(outputPath, failedShards.get(0)) + ".log");
+    }
+
+    /**
+     * Get the options of the JVMs of the workers: the given options, or the heap size <tt>-Xmx</tt> of this JVM.
+     * The other options of this JVM are not passed on, since options like agents or debug ports cannot be shared by several JVMs.
+     *
+     * @param  options The options separated by spaces, or <tt>null</tt>.
+     * @return         The options.
+     */
+    public static List<String> getWorkerJvmOptions(String options) {
+        List<String> jvmOptions = new ArrayList<String>();
+        if (options != null) {
+            for (String option : options.trim().split("\\s+"))
+                if (!option.isEmpty())
+                    jvmOptions.add(option);
+        }
+        else {
+            for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments())
+                if (option.startsWith("-Xmx"))
+                    jvmOptions.add(option);
+        }
+        return jvmOptions;
+    }
+
+    /**
+     * Delete the logs of the workers, and any model files they have left, once their outputs have been merged.
+     *
+     * @param  outputPath  The output path of the whole job.
+     * @param  shardCount  The number of shards.
+     * @throws IOException if a file cannot be deleted.
+     */
+    public static void deleteWorkerFiles(String outputPath, int shardCount) throws IOException {
+        for (int i = 0; i < shardCount; i++) {
+            Files.deleteIfExists(Paths.get(shardPath(outputPath, i) + ".log"));
+            Files.deleteIfExists(Paths.get(shardPath(outputPath, i) + ".model"));
+        }
+    }
+
+    /**
+     * Merge the recommendation lists of a stage written by the workers into <tt>outputPath + "." + stage</tt>, and delete the shard files.
+     *
+     * @param  tr          The data shared by the workers.
+     * @param  outputPath  The output path of the whole job.
+     * @param  stage       <tt>"toplist"</tt>, <tt>"list"</tt> or <tt>"category"</tt>.
+     * @param  shardCount  The number of shards.
+     * @param  format      The format of the merged lists accepted by <tt>ListWriter.open</tt>.
+     * @throws IOException if a shard file cannot be read or the merged file cannot be written.
+     */
+    public static void mergeLists(Transformation tr, String outputPath, String stage, int shardCount, String format) throws IOException {
+        ListMerger merger = new ListMerger(tr, outputPath, "." + stage, shardCount);
+        ListWriter writer = null;
+        try {
+            writer = ListWriter.open(outputPath + "." + stage, format, merger.hasCategory());
+            ListReader reader = null;
+            while ((reader = merger.next()) != null)
+                writer.writeRecord(reader.getUser(), reader.getCategory(), reader.getItems());
+        } finally {
+            if (writer != null)
+                writer.close();
+            merger.close();
+        }
+        merger.deleteShardFiles();
+    }
+
+    /**
+     * Merge the leave-one-out predictions written by the workers into <tt>outputPath</tt>, and delete the shard files.
+     *
+     * @param  tr          The data shared by the workers.
+     * @param  outputPath  The output path of the merged predictions.
+     * @param  shardCount  The number of shards.
+     * @throws IOException if a shard file cannot be read or the merged file cannot be written.
+     */
+    public static void mergePredictions(Transformation tr, String outputPath, int shardCount) throws IOException {
+        mergePredictions(tr, outputPath, "", shardCount);
+    }
+
+    /**
+     * Merge the predictions written by the workers into <tt>outputPath + suffix</tt>, and delete the shard files.
+     *
+     * @param  tr          The data shared by the workers.
+     * @param  outputPath  The output path given to the workers.
+     * @param  suffix      The suffix of the predictions, like <tt>".approx"</tt>.
+     * @param  shardCount  The number of shards.
+     * @throws IOException if a shard file cannot be read or the merged file cannot be written.
+     */
+    public static void mergePredictions(Transformation tr, String outputPath, String suffix, int shardCount) throws IOException {
+        ShardMerger merger = new ShardMerger(tr, outputPath, suffix, shardCount);
+        BufferedWriter writer = Files.newBufferedWriter(Paths.get(outputPath + suffix), StandardCharsets.UTF_8);
+        try {
+            writer.write(merger.getHeader());
+            writer.newLine();
+            String line = null;
+            while ((line = merger.next()) != null) {
+                writer.write(line);
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+            merger.close();
+        }
+        merger.deleteShardFiles();
+    }
+
+    /**
+     * A k-way merge of the list files of the shards by the user IDs of the records, decoded by <tt>ListReader</tt>.
+     * Records of the same user stay in their original order, since they all come from the same shard.
+     */
+    static class ListMerger implements Closeable {
+        Transformation tr;
+        List<Path> paths = new ArrayList<Path>();
+        List<ListReader> readers = new ArrayList<ListReader>();
+        PriorityQueue<Integer> queue;   // shard indices ordered by the user IDs of their current records
+        Integer current;                // the shard of the record returned last, advanced by the next call
+
+        ListMerger(Transformation tr, String outputPath, String suffix, int shardCount) throws IOException {
+            this.tr = tr;
+            this.queue = new PriorityQueue<Integer>(Math.max(1, shardCount), new Comparator<Integer>() {
+                public int compare(Integer shard1, Integer shard2) {
+                    int c = Integer.compare(userIDOf(shard1), userIDOf(shard2));
+                    return c != 0 ? c : Integer.compare(shard1, shard2);
+                }
+            });
+            try {
+                for (int i = 0; i < shardCount; i++) {
+                    String path = shardPath(outputPath, i) + suffix;
+                    paths.add(Paths.get(path));
+                    readers.add(ListReader.open(path, "text"));
+                    if (readers.get(i).next())
+                        queue.add(i);
+                }
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        /**
+         * @return Whether the records carry categories (every shard file has the same header).
+         */
+        boolean hasCategory() {
+            return !readers.isEmpty() && readers.get(0).hasCategory();
+        }
+
+        /**
+         * @return The reader of the shard positioned on the next record in the merged order, or <tt>null</tt> if all shard files are exhausted.
+         *         The record must be read before the next call.
+         */
+        ListReader next() throws IOException {
+            if (current != null && readers.get(current).next())
+                queue.add(current);
+            current = queue.poll();
+            return current == null ? null : readers.get(current);
+        }
+
+        public void close() throws IOException {
+            for (ListReader reader : readers)
+                reader.close();
+        }
+
+        void deleteShardFiles() throws IOException {
+            for (Path path : paths)
+                Files.deleteIfExists(path);
+        }
+
+        private int userIDOf(int shard) {
+            return tr.mapUserNameToID(readers.get(shard).getUser());
+        }
+    }
+
+    /**
+     * A k-way merge of the shard files of one output by the user IDs at the beginning of the lines.
+     * Lines of the same user stay in their original order, since they all come from the same shard.
+     */
+    static class ShardMerger implements Closeable {
+        Transformation tr;
+        List<Path> paths = new ArrayList<Path>();
+        List<BufferedReader> readers = new ArrayList<BufferedReader>();
+        String[] currentLines;
+        PriorityQueue<Integer> queue;   // shard indices ordered by the user IDs of their current lines
+        String header;
+
+        ShardMerger(Transformation tr, String outputPath, String suffix, int shardCount) throws IOException {
+            this.tr = tr;
+            this.currentLines = new String[shardCount];
+            this.queue = new PriorityQueue<Integer>(Math.max(1, shardCount), new Comparator<Integer>() {
+                public int compare(Integer shard1, Integer shard2) {
+                    int c = Integer.compare(userIDOf(currentLines[shard1]), userIDOf(currentLines[shard2]));
+                    return c != 0 ? c : Integer.compare(shard1, shard2);
+                }
+            });
+            for (int i = 0; i < shardCount; i++) {
+                Path path = Paths.get(shardPath(outputPath, i) + suffix);
+                BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+                paths.add(path);
+                readers.add(reader);
+                this.header = reader.readLine();   // every shard file has the same header line
+                advance(i);
+            }
+        }
+
+        String getHeader() { return header; }
+
+        /**
+         * @return The next line in the merged order, or <tt>null</tt> if all shard files are exhausted.
+         */
+        String next() throws IOException {
+            Integer shard = queue.poll();
+            if (shard == null)
+                return null;
+            String line = currentLines[shard];
+            advance(shard);
+            return line;
+        }
+
+        public void close() throws IOException {
+            for (BufferedReader reader : readers)
+                reader.close();
+        }
+
+        void deleteShardFiles() throws IOException {
+            for (Path path : paths)
+                Files.deleteIfExists(path);
+        }
+
+        private void advance(int shard) throws IOException {
+            String line = readers.get(shard).readLine();
+            while (line != null && line.isEmpty())
+                line = readers.get(shard).readLine();
+            currentLines[shard] = line;
+            if (line != null)
+                queue.add(shard);
+        }
+
+        private int userIDOf(String line) {
+            return tr.mapUserNameToID(line.substring(0, line.indexOf(',')));
+        }
+    }
+}
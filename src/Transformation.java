@@ -1,70 +1,138 @@
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 import au.com.bytecode.opencsv.*;
 import java.sql.*;
 
-public class Transformation{
-    private HashMap<String, Integer> userNameIDMap;
-    private HashMap<String, Integer> itemNameIDMap;
-    private HashMap<Integer, String> userIDNameMap;
-    private HashMap<Integer, String> itemIDNameMap;
-    private HashMap<String, HashMap<String, Integer> > ratingMap;
-    private HashMap<String, Integer> categoryNameIDMap;
-    private HashMap<Integer, String> categoryIDNameMap;
-    private HashMap<String, Integer> itemCategoryMap;
+/**
+ * The users, the items, their ratings, the categories and the side features, and their mappings to feature IDs.
+ *
+ * The data is kept in an immutable version (see the class <tt>Dataset</tt>), which is replaced as a whole by reading new data
+ * or by adding ratings, so the data can be refreshed while other threads are reading it.
+ * A single call always reads a single version. A reader combining several calls, like a recommendation mapping names to IDs and back,
+ * should read them from a <tt>view()</tt>, which stays on the version of the time it was taken.
+ */
+public class Transformation implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String[] userFeatureColumns;                             // CSV column indices or DB fields of user side features
+    private String[] itemFeatureColumns;                             // CSV column indices or DB fields of item side features
+    private int featureBuckets;                                      // the number of hashing buckets, or 0 for one ID per feature
+    private volatile Dataset data;                                   // the current version of the data
+    private ArrayList<String[]> pendingRatings;                      // the (user, item) pairs added since the last takePendingRatings()
+    private boolean isView;                                          // whether this is a view of a single version
+    private transient ExecutorService loader;                        // the thread reading data in the background
 
     public Transformation(){
-        this.userNameIDMap = new HashMap<String, Integer>();
-        this.itemNameIDMap = new HashMap<String, Integer>();
-        this.userIDNameMap = new HashMap<Integer, String>();
-        this.itemIDNameMap = new HashMap<Integer, String>();
-        this.ratingMap = new HashMap<String, HashMap<String, Integer> >();
-        this.categoryNameIDMap = new HashMap<String, Integer>();
-        this.categoryIDNameMap = new HashMap<Integer, String>();
-        this.itemCategoryMap = new HashMap<String, Integer>();
+        this.userFeatureColumns = new String[0];
+        this.itemFeatureColumns = new String[0];
+        this.featureBuckets = 0;
+        this.data = this.newDataset();
+        this.pendingRatings = new ArrayList<String[]>();
+    }
+
+    /** Make a view of a single version of the data.
+     * @param source The data.
+     * @param data   The version.
+     */
+    private Transformation(Transformation source, Dataset data){
+        this.userFeatureColumns = source.userFeatureColumns;
+        this.itemFeatureColumns = source.itemFeatureColumns;
+        this.featureBuckets = source.featureBuckets;
+        this.data = data;
+        this.pendingRatings = new ArrayList<String[]>();
+        this.isView = true;
+    }
+
+    /** Set the side features of users which are read together with the ratings.
+     * Each distinct value of a column (or a field) is a feature of the users having this value in any of their rows.
+     * Call this function before reading the data.
+     * @param columns The column indices (starting from 0) in the CSV file, or the field names in the rating table.
+     */
+    public void setUserFeatures(String... columns){
+        this.checkNotView();
+        this.userFeatureColumns = columns;
+    }
+
+    /** Set the side features of items which are read together with the ratings, like the board ID or the price band.
+     * Each distinct value of a column (or a field) is a feature of the items having this value in any of their rows.
+     * Call this function before reading the data.
+     * @param columns The column indices (starting from 0) in the CSV file, or the field names in the rating table.
+     */
+    public void setItemFeatures(String... columns){
+        this.checkNotView();
+        this.itemFeatureColumns = columns;
+    }
+
+    /** Use the hashing trick for the side features, so that they take at most <tt>nBuckets</tt> IDs however many distinct values they have.
+     * Call this function before reading the data.
+     * @param nBuckets The number of hashing buckets, or 0 to give every distinct side feature its own ID.
+     */
+    public void setFeatureHashing(int nBuckets){
+        this.checkNotView();
+        this.featureBuckets = nBuckets;
     }
 
     /** Read user-item information from an CSV file, and constructs a mapping between read names and IDs.
      * Name: The original information (name, id, etc.) of users or items from the CSV file
      * ID: The transformed (remapped) integers in this class
+     * The new data is built aside and then replaces the current data at once, so readers are never disturbed.
      * @param csvFilePath     The path of the assigned CSV file.
      * @param userColumnIndex Assigns which column index represents users.
      * @param itemColumnIndex Assigns which column index represents items.
      * @throws IOException    if the CSV file cannot be opened.
      */
     public void readCSVFile(String csvFilePath, int userColumnIndex, int itemColumnIndex) throws IOException {
-        this.clearMappings();
+        this.readCSVFile(csvFilePath, userColumnIndex, itemColumnIndex, null);
+    }
 
-        CSVReader csvReader = new CSVReader(new FileReader(csvFilePath));
-        String[] row = null;
-        boolean isHeader = true;
+    /** Read user-item information from an CSV file like <tt>readCSVFile()</tt>, and the categories of the items from another CSV file.
+     * The category file has a header line, and the item names in the first column and the category names in the second column.
+     * @param csvFilePath      The path of the assigned CSV file.
+     * @param userColumnIndex  Assigns which column index represents users.
+     * @param itemColumnIndex  Assigns which column index represents items.
+     * @param categoryFilePath The path of the category CSV file, or <tt>null</tt> for no category information.
+     * @throws IOException     if a CSV file cannot be opened.
+     */
+    public void readCSVFile(String csvFilePath, int userColumnIndex, int itemColumnIndex, String categoryFilePath) throws IOException {
+        this.checkNotView();
+        Dataset next = this.newDataset();
+        next.readCSVFile(csvFilePath, userColumnIndex, itemColumnIndex, categoryFilePath);
+        this.replace(next, new ArrayList<String[]>());
+    }
 
-        while((row = csvReader.readNext()) != null){
-            if(isHeader){
-                isHeader = false;
-                continue;
-            }
+    /** Read a CSV file like <tt>readCSVFile()</tt> in a background thread, while the current data is still being read.
+     * @param csvFilePath     The path of the assigned CSV file.
+     * @param userColumnIndex Assigns which column index represents users.
+     * @param itemColumnIndex Assigns which column index represents items.
+     * @return The version of the new data, once it has replaced the current data.
+     */
+    public Future<Long> readCSVFileInBackground(String csvFilePath, int userColumnIndex, int itemColumnIndex){
+        return this.readCSVFileInBackground(csvFilePath, userColumnIndex, itemColumnIndex, null);
+    }
 
-            String user = row[userColumnIndex];
-            String item = row[itemColumnIndex];
-            if(user.equals("-1") || user.equals("") || item.equals("-1") || item.equals("")){
-                continue;
+    /** Read a CSV file and a category file like <tt>readCSVFile()</tt> in a background thread, while the current data is still being read.
+     * @param csvFilePath      The path of the assigned CSV file.
+     * @param userColumnIndex  Assigns which column index represents users.
+     * @param itemColumnIndex  Assigns which column index represents items.
+     * @param categoryFilePath The path of the category CSV file, or <tt>null</tt> for no category information.
+     * @return The version of the new data, once it has replaced the current data.
+     */
+    public Future<Long> readCSVFileInBackground(final String csvFilePath, final int userColumnIndex, final int itemColumnIndex, final String categoryFilePath){
+        this.checkNotView();
+        final Dataset next = this.newDataset();
+        return this.inBackground(new Callable<Long>() {
+            public Long call() throws IOException {
+                next.readCSVFile(csvFilePath, userColumnIndex, itemColumnIndex, categoryFilePath);
+                return replace(next, new ArrayList<String[]>());
             }
-
-            this.userNameIDMap.put(user, 0);    // adds to the user list
-            this.itemNameIDMap.put(item, 0);    // adds to the item list
-            this.addRating(user, item);        // adds the rating of the user to the item
-        }
-
-        csvReader.close();
-
-        this.constructMaps(this.userNameIDMap, this.userIDNameMap);
-        this.constructMaps(this.itemNameIDMap, this.itemIDNameMap, this.userIDNameMap.size());
+        });
     }
 
     /** Read user-item information from a PostgreSQL database, and constructs a mapping between read names and IDs
+     * The new data is built aside and then replaces the current data at once, so readers are never disturbed.
      * @param databaseURL       The URL (consisting of the port number) of the assigned PostgreSQL database like "54.64.73.96:5432".
      * @param databaseName      The name of the assigned database like "oneclickshoppingwall".
      * @param account           An account to log in the database.
@@ -77,30 +145,46 @@ public class Transformation{
      * @param categoryField     The field representing categories like "mcid".
      */
     public void readDatabase(String databaseURL, String databaseName, String account, String password, String ratingTableName, String userField, String itemField, String categoryTableName, String itemTableName, String categoryField){
-        this.clearMappings();
-
-        Connection connection = null;
-        Statement statement = null;
-        ResultSet resultSet = null;
-        String databaseFullURL =  "jdbc:postgresql://" + databaseURL + "/" + databaseName;            // forms the full url accepted by the JDBC library
-
+        this.checkNotView();
+        Dataset next = this.newDataset();
         try{
-            // Connects the database
-            connection = DriverManager.getConnection(databaseFullURL, account, password);
-            this.readRatingTable(connection, ratingTableName, userField, itemField);
-
-            if(categoryTableName != null && itemTableName != null && categoryField != null){
-                this.readCategoryTable(connection, categoryTableName, categoryField);
-                this.readItemTable(connection, itemTableName, itemField, categoryField);
-            }
-
-            connection.close();
+            next.readDatabase(databaseURL, databaseName, account, password, ratingTableName, userField, itemField, categoryTableName, itemTableName, categoryField);
         }
         catch(SQLException ex){
             ex.printStackTrace();
             System.exit(1);
         }
+        this.replace(next, new ArrayList<String[]>());
+    }
 
+    /** Read a PostgreSQL database like <tt>readDatabase()</tt> in a background thread, while the current data is still being read.
+     * Unlike <tt>readDatabase()</tt>, a database error does not exit: it fails the returned <tt>Future</tt>, and the current data stays.
+     * @param databaseURL       The URL (consisting of the port number) of the assigned PostgreSQL database like "54.64.73.96:5432".
+     * @param databaseName      The name of the assigned database like "oneclickshoppingwall".
+     * @param account           An account to log in the database.
+     * @param password          The password of the account.
+     * @param ratingTableName   The name of a table in the assigned database like "product_order".
+     * @param userField         The field representing users like "aid".
+     * @param itemField         The field representing items like "pid".
+     * @param categoryTableName The name of a table in the database like "master_category", or <tt>null</tt> for no category information.
+     * @param itemTableName     The name of a table in the database like "product", or <tt>null</tt>.
+     * @param categoryField     The field representing categories like "mcid", or <tt>null</tt>.
+     * @return The version of the new data, once it has replaced the current data.
+     */
+    public Future<Long> readDatabaseInBackground(final String databaseURL, final String databaseName, final String account, final String password, final String ratingTableName, final String userField, final String itemField, final String categoryTableName, final String itemTableName, final String categoryField){
+        this.checkNotView();
+        final Dataset next = this.newDataset();
+        return this.inBackground(new Callable<Long>() {
+            public Long call() throws IOException {
+                try{
+                    next.readDatabase(databaseURL, databaseName, account, password, ratingTableName, userField, itemField, categoryTableName, itemTableName, categoryField);
+                }
+                catch(SQLException ex){
+                    throw new IOException("Cannot read the database " + databaseName, ex);
+                }
+                return replace(next, new ArrayList<String[]>());
+            }
+        });
     }
 
     /** Read user-item information from a PostgreSQL database, and constructs a mapping between read names and IDs (no category information)
@@ -116,6 +200,110 @@ public class Transformation{
         this.readDatabase(databaseURL, databaseName, account, password, ratingTableName, userField, itemField, null, null, null);
     }
 
+    /** Add a rating of a user to an item after the data has been read, e.g. when the user buys the item.
+     * A new user or a new item gets an ID after all the existing features, so the IDs of the existing features
+     * (and thus the parameters of a trained model) stay valid.
+     * The added pairs are remembered until <tt>takePendingRatings()</tt> is called, so that a model can be updated with them.
+     * @param user The name of a user.
+     * @param item The name of an item.
+     */
+    public void addNewRating(String user, String item){
+        this.addNewRatings(Collections.singletonList(new String[] {user, item}));
+    }
+
+    /** Add several ratings like <tt>addNewRating()</tt> at once.
+     * Every call copies the mappings of the users and the items into a new version, so many ratings are better added together.
+     * @param ratings The {user name, item name} pairs.
+     */
+    public synchronized void addNewRatings(List<String[]> ratings){
+        this.checkNotView();
+        Dataset next = new Dataset(this.data);
+        for(String[] rating: ratings){
+            next.addNewRating(rating[0], rating[1]);
+            this.pendingRatings.add(new String[] {rating[0], rating[1]});
+        }
+        this.publish(next);
+    }
+
+    /** Get the (user, item) pairs added by <tt>addNewRating()</tt> since the last call, and forget them.
+     * @return A list of {user name, item name} pairs.
+     */
+    public synchronized List<String[]> takePendingRatings(){
+        this.checkNotView();
+        List<String[]> ratings = this.pendingRatings;
+        this.pendingRatings = new ArrayList<String[]>();
+        return ratings;
+    }
+
+    /**
+     * Get the version of the current data, which grows every time the data is read or a rating is added.
+     * @return The version.
+     */
+    public long getVersion() {
+        return this.data.version;
+    }
+
+    /**
+     * Get the version in which the current data was read. Adding ratings keeps it: a new user or item gets a new ID
+     * and the existing IDs stay valid, so a model of an older version with the same read version still fits the current one
+     * (except for the new features). Reading data again may give every feature another ID.
+     * @return The version in which the data was read.
+     */
+    public long getReadVersion() {
+        return this.data.readVersion;
+    }
+
+    /**
+     * Get a read-only view of the current version of the data, which is not affected by reading new data or adding ratings later.
+     * Reading, adding or taking ratings through the view throws an <tt>IllegalStateException</tt>.
+     * @return The view.
+     */
+    public Transformation view() {
+        return this.isView ? this : new Transformation(this, this.data);
+    }
+
+    /**
+     * Write a snapshot of current data to <tt>snapshotFilePath</tt>, so that other processes can load exactly the same data with <tt>readSnapshot</tt>.
+     *
+     * @param  snapshotFilePath The snapshot file path.
+     * @throws IOException      If the <tt>snapshotFilePath</tt> cannot be opened.
+     */
+    public synchronized void writeSnapshot(String snapshotFilePath) throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFilePath)));
+        try {
+            out.writeObject(this);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a snapshot written by <tt>writeSnapshot</tt>, replacing current data.
+     *
+     * @param  snapshotFilePath The snapshot file path.
+     * @throws IOException      If the <tt>snapshotFilePath</tt> cannot be opened or is not a snapshot.
+     */
+    public void readSnapshot(String snapshotFilePath) throws IOException {
+        this.checkNotView();
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshotFilePath)));
+        Transformation snapshot = null;
+        try {
+            snapshot = (Transformation) in.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Not a snapshot file: " + snapshotFilePath, ex);
+        } finally {
+            in.close();
+        }
+
+        snapshot.data.constructIndexes();
+        synchronized (this) {
+            this.userFeatureColumns = snapshot.userFeatureColumns;
+            this.itemFeatureColumns = snapshot.itemFeatureColumns;
+            this.featureBuckets = snapshot.featureBuckets;
+            this.replace(snapshot.data, snapshot.pendingRatings);
+        }
+    }
+
     /**
      * Write current data to <tt>outputFilePath</tt> (in libFM format).
      *
@@ -123,24 +311,48 @@ public class Transformation{
      * @throws IOException    If the <tt>outputFilePath</tt> cannot be opened.
      */
     public void writeOutputFile(String outputFilePath) throws IOException {
-        Files.write(FileSystems.getDefault().getPath(outputFilePath), getLibfmFormatLines(), StandardCharsets.UTF_8);
+        Transformation view = this.view();
+        LibfmEncoder encoder = new LibfmEncoder(view);
+        encoder.addAll(view.getRatingTriples());
+        encoder.write(FileSystems.getDefault().getPath(outputFilePath));
+    }
+
+    /**
+     * All ratings as (user ID, item ID, rating) triples in parallel arrays.
+     */
+    public static class RatingTriples {
+        public final int[] users;
+        public final int[] items;
+        public final int[] ratings;
+
+        RatingTriples(int size) {
+            this.users = new int[size];
+            this.items = new int[size];
+            this.ratings = new int[size];
+        }
+
+        /** @return The number of ratings. */
+        public int size() { return users.length; }
+    }
+
+    /**
+     * Get all ratings as (user ID, item ID, rating) triples, in the same order as the lines of <tt>getLibfmFormatLines()</tt>,
+     * so that they can be used without parsing the lines back.
+     *
+     * @return The triples.
+     */
+    public RatingTriples getRatingTriples() {
+        return this.data.getRatingTriples();
     }
 
     /**
      * Dump current data into lines of <tt>String</tt>s in libFM format.
+     * The lines are ordered by user IDs, and then by item IDs.
      *
      * @return A list of <tt>String</tt>s in libFM format.
      */
     public List<String> getLibfmFormatLines() {
-        List<String> lines = new ArrayList<String>();
-        for (String user : getUserSet()) {
-            HashMap<String, Integer> userRatingMap = this.ratingMap.get(user);
-            for (Map.Entry<String, Integer> itemKey: userRatingMap.entrySet()) {
-                String item = itemKey.getKey();
-                lines.add(convertToLibfmFormat(user, item));
-            }
-        }
-        return lines;
+        return this.data.getLibfmFormatLines();
     }
 
     /**
@@ -151,18 +363,44 @@ public class Transformation{
      * @return The converted line.
      */
     public String convertToLibfmFormat(String user, String item) {
-        Integer rating = getRating(user, item);
-        String line = "";
-        if (rating != null) // has seen this user-item pair
-            line += String.format("%d %d:1 %d:1", rating, mapUserNameToID(user), mapItemNameToID(item));
-        else
-            line += String.format("%d %d:1 %d:1", -1, mapUserNameToID(user), mapItemNameToID(item));
+        return this.data.convertToLibfmFormat(user, item);
+    }
 
-        // use category information if available
-        Integer category = getCategory(item);
-        if (category != null)
-            line += String.format(" %d:1", category);
-        return line;
+    /**
+     * Get the IDs of all features of a user-item pair (the user, the item, its category and the side features),
+     * i.e. the features of the pair's line in libFM format.
+     * @param  user     The user name.
+     * @param  item     The item name.
+     * @return The feature IDs.
+     */
+    public int[] getFeatureIDs(String user, String item) {
+        return this.data.getFeatureIDs(user, item);
+    }
+
+    /**
+     * Get the side feature IDs of a user.
+     * @param  user The user name.
+     * @return The side feature IDs (an empty array if there is none).
+     */
+    public int[] getUserFeatures(String user) {
+        return this.data.getUserFeatures(user);
+    }
+
+    /**
+     * Get the side feature IDs of an item.
+     * @param  item The item name.
+     * @return The side feature IDs (an empty array if there is none).
+     */
+    public int[] getItemFeatures(String item) {
+        return this.data.getItemFeatures(item);
+    }
+
+    /**
+     * Get the size of the whole feature space (users, items, categories and side features), i.e. one plus the largest feature ID.
+     * @return The number of features.
+     */
+    public int getNumFeatures() {
+        return this.data.getNumFeatures();
     }
 
     /**
@@ -171,7 +409,7 @@ public class Transformation{
      * @return the converted integer index used in this system.
      */
     public int mapUserNameToID(String name){
-        return this.userNameIDMap.get(name);
+        return this.data.mapUserNameToID(name);
     }
 
     /**
@@ -180,7 +418,7 @@ public class Transformation{
      * @return the converted integer index used in this system.
      */
     public int mapItemNameToID(String name){
-        return this.itemNameIDMap.get(name);
+        return this.data.mapItemNameToID(name);
     }
 
     /**
@@ -189,7 +427,7 @@ public class Transformation{
      * @return User name in the original CSV file or database.
      */
     public String mapUserIDToName(int ID){
-        return this.userIDNameMap.get(ID);
+        return this.data.mapUserIDToName(ID);
     }
 
     /**
@@ -198,7 +436,7 @@ public class Transformation{
      * @return Item name in the original CSV file or database.
      */
     public String mapItemIDToName(int ID){
-        return this.itemIDNameMap.get(ID);
+        return this.data.mapItemIDToName(ID);
     }
 
     /**
@@ -206,7 +444,7 @@ public class Transformation{
      * @return The set of users (the original names in the database).
      */
     public Set<String> getUserSet() {
-        return this.userNameIDMap.keySet();
+        return this.data.getUserSet();
     }
 
     /**
@@ -214,7 +452,7 @@ public class Transformation{
      * @return The set of items (the original names in the database).
      */
     public Set<String> getItemSet() {
-        return this.itemNameIDMap.keySet();
+        return this.data.getItemSet();
     }
 
     /**
@@ -222,7 +460,32 @@ public class Transformation{
      * @return The set of items (the original names in the database).
      */
     public Set<String> getCategorySet() {
-        return this.categoryNameIDMap.keySet();
+        return this.data.getCategorySet();
+    }
+
+    /**
+     * Get the <tt>List</tt> of all users ordered by their IDs.
+     * Unlike <tt>getUserSet()</tt>, the order does not depend on the history of the hash map, so it is the same in every process.
+     * @return The list of users (the original names in the database).
+     */
+    public List<String> getUserList() {
+        return this.data.getUserList();
+    }
+
+    /**
+     * Get the <tt>List</tt> of all items ordered by their IDs.
+     * @return The list of items (the original names in the database).
+     */
+    public List<String> getItemList() {
+        return this.data.getItemList();
+    }
+
+    /**
+     * Get the <tt>List</tt> of all categories ordered by their IDs.
+     * @return The list of categories (the original names in the database).
+     */
+    public List<String> getCategoryList() {
+        return this.data.getCategoryList();
     }
 
     /**
@@ -234,10 +497,16 @@ public class Transformation{
      * @return The rating if this user-item pair has been observed, otherwise <tt>null</tt>.
      */
     public Integer getRating(String user, String item) {
-        HashMap<String, Integer> ratings = this.ratingMap.get(user);
-        if (ratings == null)
-            return null;
-        return this.ratingMap.get(user).get(item);
+        return this.data.getRating(user, item);
+    }
+
+    /**
+     * Get the items rated by a user.
+     * @param  user The user name.
+     * @return The set of items rated by the user (empty if the user is unknown).
+     */
+    public Set<String> getRatedItems(String user) {
+        return this.data.getRatedItems(user);
     }
 
     /**
@@ -247,10 +516,7 @@ public class Transformation{
      * @return The category ID if the item is classified, otherwise <tt>null</tt>.
      */
     public Integer getCategory(String itemName){
-        if(this.itemCategoryMap.containsKey(itemName)){
-            return this.itemCategoryMap.get(itemName);
-        }
-        return null;
+        return this.data.getCategory(itemName);
     }
 
     /**
@@ -260,7 +526,7 @@ public class Transformation{
      * @return The category ID if the item is classified, otherwise <tt>null</tt>.
      */
     public Integer getCategory(int itemID){
-        return getCategory(this.mapItemIDToName(itemID));
+        return this.data.getCategory(itemID);
     }
 
     /**
@@ -269,7 +535,7 @@ public class Transformation{
      * @return The converted integer index used in this system.
      */
     public int mapCategoryNameToID(String name){
-        return this.categoryNameIDMap.get(name);
+        return this.data.mapCategoryNameToID(name);
     }
 
     /**
@@ -278,132 +544,765 @@ public class Transformation{
      * @return Category name in the database.
      */
     public String mapCategoryIDToName(int ID){
-        return this.categoryIDNameMap.get(ID);
+        return this.data.mapCategoryIDToName(ID);
     }
 
-    private void clearMappings(){
-        this.userNameIDMap.clear();
-        this.itemNameIDMap.clear();
-        this.userIDNameMap.clear();
-        this.itemIDNameMap.clear();
-        this.ratingMap.clear();
-        this.categoryNameIDMap.clear();
-        this.categoryIDNameMap.clear();
-        this.itemCategoryMap.clear();
+    /**
+     * Get the IDs of all items in ascending order, which is the order of <tt>getItemList()</tt>.
+     * The returned array is shared and must not be modified.
+     * @return The item IDs.
+     */
+    public int[] getItemIDs() {
+        return this.data.getItemIDs();
     }
 
-    /** Gives an unique integer ID to every name in the list.
-     * @param nameIDMap A mapping from names to IDs.
-     * @param IDNameMap A mapping from IDs to names.
-     * @param startFrom The starting index of the ID counter.
+    /**
+     * Get the IDs of the items of a category in ascending order.
+     * The returned array is shared and must not be modified.
+     * @param  categoryID The category ID in the system.
+     * @return The item IDs (empty if no item is in the category).
      */
-    private void constructMaps(HashMap<String, Integer> nameIDMap, HashMap<Integer, String> IDNameMap, int startFrom){
-        TreeSet<String> sortedNames = new TreeSet<String>(nameIDMap.keySet());
-        int IDCounter = startFrom;
-        for(String name: sortedNames){
-            nameIDMap.put(name, IDCounter);
-            IDNameMap.put(IDCounter, name);
-            IDCounter ++;
-        }
+    public int[] getCategoryItemIDs(int categoryID) {
+        return this.data.getCategoryItemIDs(categoryID);
     }
 
-    /** Give an unique integer ID to every name in the list where the starting index of the ID counter is 0.
-     * @param nameIDMap A mapping from names to IDs.
-     * @param IDNameMap A mapping from IDs to names.
+    /**
+     * Get the IDs of the items rated by a user in ascending order.
+     * The returned array is shared and must not be modified.
+     * @param  userID The user ID in the system.
+     * @return The item IDs (empty if the user is unknown).
      */
-    private void constructMaps(HashMap<String, Integer> nameIDMap, HashMap<Integer, String> IDNameMap){
-        constructMaps(nameIDMap, IDNameMap, 0);
+    public int[] getSeenItemIDs(int userID) {
+        return this.data.getSeenItemIDs(userID);
     }
 
-    /** Add the rating of a user to an item.
-     * @param user The name of a user.
-     * @param item The name of an item.
+    /**
+     * Get the IDs of the items not yet rated by a user, optionally only those of a category, in ascending order.
+     * This is the difference of two sorted arrays, without looking up any name.
+     * @param  userID   The user ID in the system.
+     * @param  category The category name, or <tt>null</tt> for all items.
+     * @return The item IDs.
      */
-    private void addRating(String user, String item){
-        if(!this.ratingMap.containsKey(user)){
-            this.ratingMap.put(user, new HashMap<String, Integer>());
-        }
-        if(!this.ratingMap.get(user).containsKey(item)){
-            this.ratingMap.get(user).put(item, 0);
+    public int[] getUnseenItemIDs(int userID, String category) {
+        return this.data.getUnseenItemIDs(userID, category);
+    }
+
+    /** Create an empty version with the current settings of the side features.
+     * @return The empty version.
+     */
+    private Dataset newDataset(){
+        return new Dataset(this.userFeatureColumns, this.itemFeatureColumns, this.featureBuckets);
+    }
+
+    /** Make a new version the current data.
+     * @param  next The new version, which must not be changed any more.
+     * @return The version number given to it.
+     */
+    private synchronized long publish(Dataset next){
+        next.version = this.data.version + 1;
+        this.data = next;
+        return next.version;
+    }
+
+    /** Replace the current data with newly read data, together with the ratings still to be taken by <tt>takePendingRatings()</tt>.
+     * The ratings added to the old data are dropped.
+     * @param  next           The new version.
+     * @param  pendingRatings The pending ratings of the new data.
+     * @return The version number given to it.
+     */
+    private synchronized long replace(Dataset next, ArrayList<String[]> pendingRatings){
+        this.pendingRatings = pendingRatings;
+        next.readVersion = this.data.version + 1;
+        return this.publish(next);
+    }
+
+    /** Run a task in the background thread, which is created on the first call.
+     * @param  task The task.
+     * @return The result of the task.
+     */
+    private synchronized <T> Future<T> inBackground(Callable<T> task){
+        if(this.loader == null){
+            this.loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Transformation loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return this.loader.submit(task);
+    }
 
-        int rating = this.ratingMap.get(user).get(item);
-        this.ratingMap.get(user).put(item, rating == 5? 5: rating + 1); // saturate at 5 to avoid noisy data
+    private void checkNotView(){
+        if(this.isView){
+            throw new IllegalStateException("A view of the data cannot be changed");
+        }
     }
 
-    /** Connect to the database and read (user, item) pairs.
-     * @param connection      The connection to the database.
-     * @param ratingTableName The name of a table in the database like "product_order".
-     * @param userField       The field representing users like "aid".
-     * @param itemField       The field representing items like "pid".
+    /**
+     * A version of the data. It is filled in by reading the data, and never changed after it has become the current data;
+     * adding ratings makes a changed copy instead. So any number of threads can read it without locks.
+     * The functions without comments answer the functions of <tt>Transformation</tt> with the same names.
      */
-    private void readRatingTable(Connection connection, String ratingTableName, String userField, String itemField) throws SQLException{
-        String query = "SELECT \"" + userField + "\", \"" + itemField + "\" FROM \"" + ratingTableName + "\"";    // sets the query cammand
-        Statement statement = connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(query);
+    static class Dataset implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private HashMap<String, Integer> userNameIDMap;
+        private HashMap<String, Integer> itemNameIDMap;
+        private HashMap<Integer, String> userIDNameMap;
+        private HashMap<Integer, String> itemIDNameMap;
+        private HashMap<String, HashMap<String, Integer> > ratingMap;
+        private HashMap<String, Integer> categoryNameIDMap;
+        private HashMap<Integer, String> categoryIDNameMap;
+        private HashMap<String, Integer> itemCategoryMap;
+        private String[] userFeatureColumns;                             // CSV column indices or DB fields of user side features
+        private String[] itemFeatureColumns;                             // CSV column indices or DB fields of item side features
+        private int featureBuckets;                                      // the number of hashing buckets, or 0 for one ID per feature
+        private HashMap<String, HashSet<String> > userFeatureNameMap;    // the side feature names of each user
+        private HashMap<String, HashSet<String> > itemFeatureNameMap;    // the side feature names of each item
+        private HashMap<String, Integer> featureNameIDMap;
+        private HashMap<String, int[]> userFeatureMap;                   // the side feature IDs of each user
+        private HashMap<String, int[]> itemFeatureMap;                   // the side feature IDs of each item
+        private int featureBase;                                         // the first side feature ID
+        private int nFeatures;                                           // the size of the whole feature space
+        private long version;                                            // given when the version becomes the current data
+        private long readVersion;                                        // the version read from the source, kept by adding ratings
+        private transient int[] itemIDs;                                 // all item IDs in ascending order
+        private transient HashMap<Integer, int[]> categoryItemMap;       // the item IDs of each category in ascending order
+        private transient int[][] seenItemIDs;                           // the item IDs rated by each user ID in ascending order
+
+        Dataset(String[] userFeatureColumns, String[] itemFeatureColumns, int featureBuckets){
+            this.userNameIDMap = new HashMap<String, Integer>();
+            this.itemNameIDMap = new HashMap<String, Integer>();
+            this.userIDNameMap = new HashMap<Integer, String>();
+            this.itemIDNameMap = new HashMap<Integer, String>();
+            this.ratingMap = new HashMap<String, HashMap<String, Integer> >();
+            this.categoryNameIDMap = new HashMap<String, Integer>();
+            this.categoryIDNameMap = new HashMap<Integer, String>();
+            this.itemCategoryMap = new HashMap<String, Integer>();
+            this.userFeatureColumns = userFeatureColumns;
+            this.itemFeatureColumns = itemFeatureColumns;
+            this.featureBuckets = featureBuckets;
+            this.userFeatureNameMap = new HashMap<String, HashSet<String> >();
+            this.itemFeatureNameMap = new HashMap<String, HashSet<String> >();
+            this.featureNameIDMap = new HashMap<String, Integer>();
+            this.userFeatureMap = new HashMap<String, int[]>();
+            this.itemFeatureMap = new HashMap<String, int[]>();
+            this.constructIndexes();
+        }
+
+        /** Copy a version to add ratings to it. The maps changed by <tt>addNewRating()</tt> are copied, the others are shared.
+         * @param source The version to copy.
+         */
+        Dataset(Dataset source){
+            this.userNameIDMap = new HashMap<String, Integer>(source.userNameIDMap);
+            this.itemNameIDMap = new HashMap<String, Integer>(source.itemNameIDMap);
+            this.userIDNameMap = new HashMap<Integer, String>(source.userIDNameMap);
+            this.itemIDNameMap = new HashMap<Integer, String>(source.itemIDNameMap);
+            this.ratingMap = new HashMap<String, HashMap<String, Integer> >(source.ratingMap);
+            this.categoryNameIDMap = source.categoryNameIDMap;
+            this.categoryIDNameMap = source.categoryIDNameMap;
+            this.itemCategoryMap = source.itemCategoryMap;
+            this.userFeatureColumns = source.userFeatureColumns;
+            this.itemFeatureColumns = source.itemFeatureColumns;
+            this.featureBuckets = source.featureBuckets;
+            this.userFeatureNameMap = source.userFeatureNameMap;
+            this.itemFeatureNameMap = source.itemFeatureNameMap;
+            this.featureNameIDMap = source.featureNameIDMap;
+            this.userFeatureMap = source.userFeatureMap;
+            this.itemFeatureMap = source.itemFeatureMap;
+            this.featureBase = source.featureBase;
+            this.nFeatures = source.nFeatures;
+            this.readVersion = source.readVersion;
+            this.itemIDs = source.itemIDs;
+            this.categoryItemMap = source.categoryItemMap;
+            this.seenItemIDs = source.seenItemIDs.clone();
+        }
+
+        /** Read the ratings, the side features and the categories from a PostgreSQL database (see <tt>Transformation.readDatabase()</tt>).
+         * @throws SQLException if fails to read the database.
+         */
+        void readDatabase(String databaseURL, String databaseName, String account, String password, String ratingTableName, String userField, String itemField, String categoryTableName, String itemTableName, String categoryField) throws SQLException {
+            String databaseFullURL =  "jdbc:postgresql://" + databaseURL + "/" + databaseName;            // forms the full url accepted by the JDBC library
+
+            // Connects the database
+            Connection connection = DriverManager.getConnection(databaseFullURL, account, password);
+            try{
+                this.readRatingTable(connection, ratingTableName, userField, itemField);
+
+                if(categoryTableName != null && itemTableName != null && categoryField != null){
+                    this.readCategoryTable(connection, categoryTableName, categoryField);
+                    this.readItemTable(connection, itemTableName, itemField, categoryField);
+                }
+                this.constructFeatureMaps();
+                this.constructIndexes();
+            }
+            finally{
+                connection.close();
+            }
+        }
 
-        while(resultSet.next()){
-            String user = resultSet.getString(userField);
-            String item = resultSet.getString(itemField);
+        /** Read the ratings, the side features and the categories from CSV files (see <tt>Transformation.readCSVFile()</tt>).
+         * @param csvFilePath      The path of the assigned CSV file.
+         * @param userColumnIndex  Assigns which column index represents users.
+         * @param itemColumnIndex  Assigns which column index represents items.
+         * @param categoryFilePath The path of the category CSV file, or <tt>null</tt>.
+         * @throws IOException     if a CSV file cannot be opened.
+         */
+        void readCSVFile(String csvFilePath, int userColumnIndex, int itemColumnIndex, String categoryFilePath) throws IOException {
+            CSVReader csvReader = new CSVReader(new FileReader(csvFilePath));
+            String[] row = null;
+            boolean isHeader = true;
 
-            if(user.equals("-1") || user.equals("") || item.equals("-1") || item.equals("")){
-                continue;
+            while((row = csvReader.readNext()) != null){
+                if(isHeader){
+                    isHeader = false;
+                    continue;
+                }
+
+                String user = row[userColumnIndex];
+                String item = row[itemColumnIndex];
+                if(user.equals("-1") || user.equals("") || item.equals("-1") || item.equals("")){
+                    continue;
+                }
+
+                this.userNameIDMap.put(user, 0);    // adds to the user list
+                this.itemNameIDMap.put(item, 0);    // adds to the item list
+                this.addRating(user, item);        // adds the rating of the user to the item
+
+                for (String column : this.userFeatureColumns)
+                    this.addFeatureName(this.userFeatureNameMap, user, "c" + column, row[Integer.parseInt(column)]);
+                for (String column : this.itemFeatureColumns)
+                    this.addFeatureName(this.itemFeatureNameMap, item, "c" + column, row[Integer.parseInt(column)]);
             }
 
-            this.userNameIDMap.put(user, 0);    // add to the user list
-            this.itemNameIDMap.put(item, 0);    // add to the item list
-            this.addRating(user, item);            // add the rating of the user to the item
+            csvReader.close();
+
+            this.constructMaps(this.userNameIDMap, this.userIDNameMap);
+            this.constructMaps(this.itemNameIDMap, this.itemIDNameMap, this.userIDNameMap.size());
+            if(categoryFilePath != null){
+                this.readCategoryFile(categoryFilePath);
+            }
+            this.constructFeatureMaps();
+            this.constructIndexes();
         }
 
-        statement.close();
+        /** Read the categories of items from a CSV file of (item, category) rows, like <tt>readCategoryTable()</tt> and <tt>readItemTable()</tt>.
+         * @param categoryFilePath The path of the category CSV file.
+         * @throws IOException     if the CSV file cannot be opened.
+         */
+        private void readCategoryFile(String categoryFilePath) throws IOException {
+            CSVReader csvReader = new CSVReader(new FileReader(categoryFilePath));
+            ArrayList<String[]> itemCategories = new ArrayList<String[]>();
+            String[] row = csvReader.readNext();    // skips the header
 
-        this.constructMaps(this.userNameIDMap, this.userIDNameMap);
-        this.constructMaps(this.itemNameIDMap, this.itemIDNameMap, this.userIDNameMap.size());
-    }
+            while((row = csvReader.readNext()) != null){
+                if(row.length < 2 || row[1].equals("")){
+                    continue;
+                }
+                this.categoryNameIDMap.put(row[1], 0);
+                itemCategories.add(row);
+            }
 
-    /** Connect to the database and read all the categories.
-     * @param connection        The connection to the database.
-     * @param categoryTableName The name of a table in the database like "master_category".
-     * @param categoryField     The field representing categories like "mcid".
-     */
-    private void readCategoryTable(Connection connection, String categoryTableName, String categoryField) throws SQLException{
-        String query = "SELECT \"" + categoryField + "\" FROM \"" + categoryTableName +  "\"";
-        Statement statement = connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(query);
+            csvReader.close();
 
-        while(resultSet.next()){
-            String category = resultSet.getString(categoryField);
+            this.constructMaps(this.categoryNameIDMap, this.categoryIDNameMap, this.userIDNameMap.size() + this.itemIDNameMap.size());
+            for(String[] itemCategory: itemCategories){
+                this.itemCategoryMap.put(itemCategory[0], this.categoryNameIDMap.get(itemCategory[1]));
+            }
+        }
 
-            this.categoryNameIDMap.put(category, 0);
+        /** Add a rating to this copy (see <tt>Transformation.addNewRating()</tt>).
+         * @param user The name of a user.
+         * @param item The name of an item.
+         */
+        void addNewRating(String user, String item){
+            if(!this.userNameIDMap.containsKey(user)){
+                this.userNameIDMap.put(user, this.nFeatures);
+                this.userIDNameMap.put(this.nFeatures, user);
+                this.nFeatures++;
+            }
+            if(!this.itemNameIDMap.containsKey(item)){
+                this.itemNameIDMap.put(item, this.nFeatures);
+                this.itemIDNameMap.put(this.nFeatures, item);
+                this.itemIDs = insertID(this.itemIDs, this.nFeatures);
+                this.nFeatures++;
+            }
+            if(this.getRating(user, item) == null){
+                int userID = this.userNameIDMap.get(user);
+                if(userID >= this.seenItemIDs.length){
+                    this.seenItemIDs = Arrays.copyOf(this.seenItemIDs, Math.max(this.nFeatures, this.seenItemIDs.length * 2));
+                }
+                this.seenItemIDs[userID] = insertID(this.seenItemIDs[userID] == null ? new int[0] : this.seenItemIDs[userID], this.itemNameIDMap.get(item));
+            }
+            // the ratings of the user may be shared with the older versions
+            HashMap<String, Integer> ratings = this.ratingMap.get(user);
+            this.ratingMap.put(user, ratings == null ? new HashMap<String, Integer>() : new HashMap<String, Integer>(ratings));
+            this.addRating(user, item);
         }
 
-        statement.close();
+        RatingTriples getRatingTriples() {
+            int size = 0;
+            for (HashMap<String, Integer> ratings : this.ratingMap.values())
+                size += ratings.size();
+            RatingTriples triples = new RatingTriples(size);
+            int i = 0;
+            for (String user : getUserList()) {
+                int userID = mapUserNameToID(user);
+                TreeMap<Integer, Integer> userRatings = new TreeMap<Integer, Integer>();
+                for (Map.Entry<String, Integer> rating : this.ratingMap.get(user).entrySet())
+                    userRatings.put(mapItemNameToID(rating.getKey()), rating.getValue());
+                for (Map.Entry<Integer, Integer> rating : userRatings.entrySet()) {
+                    triples.users[i] = userID;
+                    triples.items[i] = rating.getKey();
+                    triples.ratings[i] = rating.getValue();
+                    i++;
+                }
+            }
+            return triples;
+        }
 
-        this.constructMaps(this.categoryNameIDMap, this.categoryIDNameMap, this.userIDNameMap.size() + this.itemIDNameMap.size());
-    }
+        List<String> getLibfmFormatLines() {
+            List<String> lines = new ArrayList<String>();
+            for (String user : getUserList()) {
+                TreeMap<Integer, String> userItems = new TreeMap<Integer, String>();
+                for (String item : this.ratingMap.get(user).keySet())
+                    userItems.put(mapItemNameToID(item), item);
+                for (String item : userItems.values())
+                    lines.add(convertToLibfmFormat(user, item));
+            }
+            return lines;
+        }
 
-    /** Connect to the database and read the categories of items.
-     * @param connection    The connection to the database.
-     * @param itemTableName The name of a table in the database like "product".
-     * @param itemField     The field representing items like "pid".
-     * @param categoryField The field representing categories like "mcid".
-     */
-    private void readItemTable(Connection connection, String itemTableName, String itemField, String categoryField) throws SQLException{
-        String query = "SELECT \"" + itemField + "\",\"" + categoryField + "\" FROM \"" + itemTableName + "\"";
-        Statement statement = connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(query);
+        String convertToLibfmFormat(String user, String item) {
+            Integer rating = getRating(user, item);
+            StringBuilder line = new StringBuilder();
+            line.append(rating != null ? rating : -1);   // -1 if has not seen this user-item pair
+            line.append(' ').append(mapUserNameToID(user)).append(":1");
+            line.append(' ').append(mapItemNameToID(item)).append(":1");
+
+            // use category information if available
+            Integer category = getCategory(item);
+            if (category != null)
+                line.append(' ').append(category).append(":1");
+
+            // use side features if available
+            for (int feature : getUserFeatures(user))
+                line.append(' ').append(feature).append(":1");
+            for (int feature : getItemFeatures(item))
+                line.append(' ').append(feature).append(":1");
+            return line.toString();
+        }
+
+        int[] getFeatureIDs(String user, String item) {
+            Integer category = getCategory(item);
+            int[] userFeatures = getUserFeatures(user);
+            int[] itemFeatures = getItemFeatures(item);
+            int[] features = new int[2 + (category != null ? 1 : 0) + userFeatures.length + itemFeatures.length];
+            int i = 0;
+            features[i++] = mapUserNameToID(user);
+            features[i++] = mapItemNameToID(item);
+            if (category != null)
+                features[i++] = category;
+            for (int feature : userFeatures)
+                features[i++] = feature;
+            for (int feature : itemFeatures)
+                features[i++] = feature;
+            return features;
+        }
+
+        int[] getUserFeatures(String user) {
+            int[] features = this.userFeatureMap.get(user);
+            return features == null ? new int[0] : features;
+        }
+
+        int[] getItemFeatures(String item) {
+            int[] features = this.itemFeatureMap.get(item);
+            return features == null ? new int[0] : features;
+        }
+
+        int getNumFeatures() {
+            return this.nFeatures;
+        }
+
+        int mapUserNameToID(String name){
+            return this.userNameIDMap.get(name);
+        }
+
+        int mapItemNameToID(String name){
+            return this.itemNameIDMap.get(name);
+        }
+
+        String mapUserIDToName(int ID){
+            return this.userIDNameMap.get(ID);
+        }
+
+        String mapItemIDToName(int ID){
+            return this.itemIDNameMap.get(ID);
+        }
+
+        Set<String> getUserSet() {
+            return this.userNameIDMap.keySet();
+        }
+
+        Set<String> getItemSet() {
+            return this.itemNameIDMap.keySet();
+        }
+
+        Set<String> getCategorySet() {
+            return this.categoryNameIDMap.keySet();
+        }
+
+        List<String> getUserList() {
+            return getNamesOrderedByID(this.userIDNameMap);
+        }
+
+        List<String> getItemList() {
+            return getNamesOrderedByID(this.itemIDNameMap);
+        }
+
+        List<String> getCategoryList() {
+            return getNamesOrderedByID(this.categoryIDNameMap);
+        }
+
+        Integer getRating(String user, String item) {
+            HashMap<String, Integer> ratings = this.ratingMap.get(user);
+            if (ratings == null)
+                return null;
+            return this.ratingMap.get(user).get(item);
+        }
+
+        Set<String> getRatedItems(String user) {
+            HashMap<String, Integer> ratings = this.ratingMap.get(user);
+            if (ratings == null)
+                return Collections.emptySet();
+            return ratings.keySet();
+        }
 
-        while(resultSet.next()){
-            String item = resultSet.getString(itemField);
-            String category = resultSet.getString(categoryField);
+        Integer getCategory(String itemName){
+            if(this.itemCategoryMap.containsKey(itemName)){
+                return this.itemCategoryMap.get(itemName);
+            }
+            return null;
+        }
+
+        Integer getCategory(int itemID){
+            return getCategory(this.mapItemIDToName(itemID));
+        }
+
+        int mapCategoryNameToID(String name){
+            return this.categoryNameIDMap.get(name);
+        }
+
+        String mapCategoryIDToName(int ID){
+            return this.categoryIDNameMap.get(ID);
+        }
+
+        int[] getItemIDs() {
+            return this.itemIDs;
+        }
+
+        int[] getCategoryItemIDs(int categoryID) {
+            int[] IDs = this.categoryItemMap.get(categoryID);
+            return IDs == null ? new int[0] : IDs;
+        }
+
+        int[] getSeenItemIDs(int userID) {
+            int[][] seen = this.seenItemIDs;
+            if (userID < 0 || userID >= seen.length || seen[userID] == null)
+                return new int[0];
+            return seen[userID];
+        }
+
+        int[] getUnseenItemIDs(int userID, String category) {
+            int[] pool = category == null ? this.itemIDs : this.getCategoryItemIDs(this.mapCategoryNameToID(category));
+            int[] seen = this.getSeenItemIDs(userID);
+            int[] unseen = new int[pool.length];
+            int n = 0;
+            int s = 0;
+            for (int itemID : pool) {
+                while (s < seen.length && seen[s] < itemID)
+                    s++;
+                if (s == seen.length || seen[s] != itemID)
+                    unseen[n++] = itemID;
+            }
+            return n == unseen.length ? unseen : Arrays.copyOf(unseen, n);
+        }
+
+        private List<String> getNamesOrderedByID(HashMap<Integer, String> IDNameMap){
+            return new ArrayList<String>(new TreeMap<Integer, String>(IDNameMap).values());
+        }
+
+        /** Add a side feature to a user or an item.
+         * @param featureNameMap The side feature names of users or items.
+         * @param name           The name of the user or the item.
+         * @param column         The column or the field of the feature.
+         * @param value          The value of the feature.
+         */
+        private void addFeatureName(HashMap<String, HashSet<String> > featureNameMap, String name, String column, String value){
+            if(value == null || value.equals("")){
+                return;
+            }
+            if(!featureNameMap.containsKey(name)){
+                featureNameMap.put(name, new HashSet<String>());
+            }
+            featureNameMap.get(name).add(column + "=" + value);
+        }
+
+        /** Give IDs to the side features after the users, items and categories.
+         * With the hashing trick, a feature is mapped to one of the <tt>featureBuckets</tt> IDs by the hash value of its name;
+         * otherwise every distinct feature gets its own ID.
+         */
+        private void constructFeatureMaps(){
+            this.featureBase = this.userIDNameMap.size() + this.itemIDNameMap.size() + this.categoryIDNameMap.size();
+            if(this.featureBuckets == 0){
+                TreeSet<String> featureNames = new TreeSet<String>();
+                for(HashSet<String> names: this.userFeatureNameMap.values()){
+                    featureNames.addAll(names);
+                }
+                for(HashSet<String> names: this.itemFeatureNameMap.values()){
+                    featureNames.addAll(names);
+                }
+                for(String name: featureNames){
+                    this.featureNameIDMap.put(name, 0);
+                }
+                this.constructMaps(this.featureNameIDMap, new HashMap<Integer, String>(), this.featureBase);
+                this.nFeatures = this.featureBase + this.featureNameIDMap.size();
+            }
+            else{
+                this.nFeatures = this.featureBase + this.featureBuckets;
+            }
+
+            this.constructFeatureIDs(this.userFeatureNameMap, this.userFeatureMap, "u:");
+            this.constructFeatureIDs(this.itemFeatureNameMap, this.itemFeatureMap, "i:");
+        }
 
-            Integer categoryID = null;
-            if(this.categoryNameIDMap.containsKey(category)){
-                categoryID = this.categoryNameIDMap.get(category);
+        /** Map the side feature names of users or items to feature IDs.
+         * @param featureNameMap The side feature names of users or items.
+         * @param featureMap     The side feature IDs of users or items.
+         * @param prefix         Distinguishes the hash values of user features from those of item features.
+         */
+        private void constructFeatureIDs(HashMap<String, HashSet<String> > featureNameMap, HashMap<String, int[]> featureMap, String prefix){
+            for(Map.Entry<String, HashSet<String> > entry: featureNameMap.entrySet()){
+                TreeSet<Integer> IDs = new TreeSet<Integer>();    // several features may share a bucket
+                for(String name: entry.getValue()){
+                    if(this.featureBuckets == 0){
+                        IDs.add(this.featureNameIDMap.get(name));
+                    }
+                    else{
+                        IDs.add(this.featureBase + Math.floorMod(hash(prefix + name), this.featureBuckets));
+                    }
+                }
+                int[] features = new int[IDs.size()];
+                int i = 0;
+                for(int ID: IDs){
+                    features[i++] = ID;
+                }
+                featureMap.put(entry.getKey(), features);
             }
-            this.itemCategoryMap.put(item, categoryID);
         }
 
-        statement.close();
+        /** Mix the bits of <tt>String.hashCode()</tt> (the finalizer of MurmurHash3), so that similar names spread over the buckets.
+         * @param name A feature name.
+         * @return The hash value.
+         */
+        private static int hash(String name){
+            int h = name.hashCode();
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+
+        /** Gives an unique integer ID to every name in the list.
+         * @param nameIDMap A mapping from names to IDs.
+         * @param IDNameMap A mapping from IDs to names.
+         * @param startFrom The starting index of the ID counter.
+         */
+        private void constructMaps(HashMap<String, Integer> nameIDMap, HashMap<Integer, String> IDNameMap, int startFrom){
+            TreeSet<String> sortedNames = new TreeSet<String>(nameIDMap.keySet());
+            int IDCounter = startFrom;
+            for(String name: sortedNames){
+                nameIDMap.put(name, IDCounter);
+                IDNameMap.put(IDCounter, name);
+                IDCounter ++;
+            }
+        }
+
+        /** Give an unique integer ID to every name in the list where the starting index of the ID counter is 0.
+         * @param nameIDMap A mapping from names to IDs.
+         * @param IDNameMap A mapping from IDs to names.
+         */
+        private void constructMaps(HashMap<String, Integer> nameIDMap, HashMap<Integer, String> IDNameMap){
+            constructMaps(nameIDMap, IDNameMap, 0);
+        }
+
+        /** Build the sorted item ID arrays of all items, of each category and of each user from the maps.
+         * Call this function whenever the maps have been replaced as a whole.
+         */
+        private void constructIndexes(){
+            this.itemIDs = sortedIDs(this.itemIDNameMap.keySet());
+
+            HashMap<Integer, ArrayList<Integer> > categoryItems = new HashMap<Integer, ArrayList<Integer> >();
+            for(Map.Entry<String, Integer> entry: this.itemCategoryMap.entrySet()){
+                Integer itemID = this.itemNameIDMap.get(entry.getKey());
+                if(entry.getValue() == null || itemID == null){
+                    continue;
+                }
+                if(!categoryItems.containsKey(entry.getValue())){
+                    categoryItems.put(entry.getValue(), new ArrayList<Integer>());
+                }
+                categoryItems.get(entry.getValue()).add(itemID);
+            }
+            this.categoryItemMap = new HashMap<Integer, int[]>();
+            for(Map.Entry<Integer, ArrayList<Integer> > entry: categoryItems.entrySet()){
+                this.categoryItemMap.put(entry.getKey(), sortedIDs(entry.getValue()));
+            }
+
+            this.seenItemIDs = new int[this.nFeatures][];
+            for(Map.Entry<String, HashMap<String, Integer> > entry: this.ratingMap.entrySet()){
+                ArrayList<Integer> IDs = new ArrayList<Integer>();
+                for(String item: entry.getValue().keySet()){
+                    IDs.add(this.itemNameIDMap.get(item));
+                }
+                this.seenItemIDs[this.userNameIDMap.get(entry.getKey())] = sortedIDs(IDs);
+            }
+        }
+
+        /** Copy IDs into an array in ascending order.
+         * @param  IDs The IDs.
+         * @return The sorted array.
+         */
+        private static int[] sortedIDs(Collection<Integer> IDs){
+            int[] sorted = new int[IDs.size()];
+            int i = 0;
+            for(int ID: IDs){
+                sorted[i++] = ID;
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        /** Copy a sorted ID array with one more ID, keeping it sorted, so that readers of the old array are not disturbed.
+         * @param  IDs The sorted IDs.
+         * @param  ID  The ID to insert.
+         * @return The new array.
+         */
+        private static int[] insertID(int[] IDs, int ID){
+            int position = Arrays.binarySearch(IDs, ID);
+            if(position >= 0){
+                return IDs;
+            }
+            position = -position - 1;
+            int[] inserted = new int[IDs.length + 1];
+            System.arraycopy(IDs, 0, inserted, 0, position);
+            inserted[position] = ID;
+            System.arraycopy(IDs, position, inserted, position + 1, IDs.length - position);
+            return inserted;
+        }
+
+        /** Add the rating of a user to an item.
+         * @param user The name of a user.
+         * @param item The name of an item.
+         */
+        private void addRating(String user, String item){
+            if(!this.ratingMap.containsKey(user)){
+                this.ratingMap.put(user, new HashMap<String, Integer>());
+            }
+            if(!this.ratingMap.get(user).containsKey(item)){
+                this.ratingMap.get(user).put(item, 0);
+            }
+
+            int rating = this.ratingMap.get(user).get(item);
+            this.ratingMap.get(user).put(item, rating == 5? 5: rating + 1); // saturate at 5 to avoid noisy data
+        }
+
+        /** Connect to the database and read (user, item) pairs.
+         * @param connection      The connection to the database.
+         * @param ratingTableName The name of a table in the database like "product_order".
+         * @param userField       The field representing users like "aid".
+         * @param itemField       The field representing items like "pid".
+         */
+        private void readRatingTable(Connection connection, String ratingTableName, String userField, String itemField) throws SQLException{
+            String fields = "\"" + userField + "\", \"" + itemField + "\"";
+            for (String field : this.userFeatureColumns)
+                fields += ", \"" + field + "\"";
+            for (String field : this.itemFeatureColumns)
+                fields += ", \"" + field + "\"";
+            String query = "SELECT " + fields + " FROM \"" + ratingTableName + "\"";    // sets the query cammand
+            Statement statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery(query);
+
+            while(resultSet.next()){
+                String user = resultSet.getString(userField);
+                String item = resultSet.getString(itemField);
+
+                if(user.equals("-1") || user.equals("") || item.equals("-1") || item.equals("")){
+                    continue;
+                }
+
+                this.userNameIDMap.put(user, 0);    // add to the user list
+                this.itemNameIDMap.put(item, 0);    // add to the item list
+                this.addRating(user, item);            // add the rating of the user to the item
+
+                for (String field : this.userFeatureColumns)
+                    this.addFeatureName(this.userFeatureNameMap, user, field, resultSet.getString(field));
+                for (String field : this.itemFeatureColumns)
+                    this.addFeatureName(this.itemFeatureNameMap, item, field, resultSet.getString(field));
+            }
+
+            statement.close();
+
+            this.constructMaps(this.userNameIDMap, this.userIDNameMap);
+            this.constructMaps(this.itemNameIDMap, this.itemIDNameMap, this.userIDNameMap.size());
+        }
+
+        /** Connect to the database and read all the categories.
+         * @param connection        The connection to the database.
+         * @param categoryTableName The name of a table in the database like "master_category".
+         * @param categoryField     The field representing categories like "mcid".
+         */
+        private void readCategoryTable(Connection connection, String categoryTableName, String categoryField) throws SQLException{
+            String query = "SELECT \"" + categoryField + "\" FROM \"" + categoryTableName +  "\"";
+            Statement statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery(query);
+
+            while(resultSet.next()){
+                String category = resultSet.getString(categoryField);
+
+                this.categoryNameIDMap.put(category, 0);
+            }
+
+            statement.close();
+
+            this.constructMaps(this.categoryNameIDMap, this.categoryIDNameMap, this.userIDNameMap.size() + this.itemIDNameMap.size());
+        }
+
+        /** Connect to the database and read the categories of items.
+         * @param connection    The connection to the database.
+         * @param itemTableName The name of a table in the database like "product".
+         * @param itemField     The field representing items like "pid".
+         * @param categoryField The field representing categories like "mcid".
+         */
+        private void readItemTable(Connection connection, String itemTableName, String itemField, String categoryField) throws SQLException{
+            String query = "SELECT \"" + itemField + "\",\"" + categoryField + "\" FROM \"" + itemTableName + "\"";
+            Statement statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery(query);
+
+            while(resultSet.next()){
+                String item = resultSet.getString(itemField);
+                String category = resultSet.getString(categoryField);
+
+                Integer categoryID = null;
+                if(this.categoryNameIDMap.containsKey(category)){
+                    categoryID = this.categoryNameIDMap.get(category);
+                }
+                this.itemCategoryMap.put(item, categoryID);
+            }
+
+            statement.close();
+        }
     }
 }